@@ -0,0 +1,374 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Helper methods for encoding/decoding individual file blocks
+ * 
+ * Each block of a file is encrypted independently using an IV derived from the
+ * file IV and the block number, so any block can be decoded without touching
+ * the ones preceding it.
+ */
+class EncFSBlockCodec {
+
+	/**
+	 * Compute the file IV from the given (encrypted) file header
+	 * 
+	 * @param volume
+	 *            Volume hosting the file
+	 * @param fileHeader
+	 *            First HEADER_SIZE bytes of the file
+	 * 
+	 * @return File IV
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             File header is corrupt
+	 * @throws EncFSUnsupportedException
+	 *             Unsupported EncFS configuration
+	 */
+	static byte[] getFileIV(EncFSVolume volume, byte[] fileHeader)
+			throws EncFSCorruptDataException, EncFSUnsupportedException {
+		// Without external IV chaining (unsupported) the header uses a zero IV
+		byte[] zeroIv = new byte[8];
+		try {
+			return EncFSCrypto.streamDecode(volume, zeroIv, fileHeader);
+		} catch (InvalidAlgorithmParameterException e) {
+			throw new EncFSCorruptDataException(e);
+		} catch (IllegalBlockSizeException e) {
+			throw new EncFSCorruptDataException(e);
+		} catch (BadPaddingException e) {
+			throw new EncFSCorruptDataException(e);
+		}
+	}
+
+	/**
+	 * Return the IV seed for the given block number
+	 * 
+	 * @param fileIv
+	 *            File IV as a 64-bit value
+	 * @param blockNum
+	 *            Index of the block in the file
+	 * 
+	 * @return IV seed for the block
+	 */
+	static long getBlockIV(long fileIv, long blockNum) {
+		return blockNum ^ fileIv;
+	}
+
+	/**
+	 * Decode a single block of a file and verify its MAC header
+	 * 
+	 * Full blocks are decoded in block mode, the final partial block of a file
+	 * in stream mode. All-zero blocks are passed through as-is if the volume
+	 * allows holes. The block is decoded into the caller supplied buffer so
+	 * that buffers can be reused across blocks.
+	 * 
+	 * @param volume
+	 *            Volume hosting the file
+	 * @param fileIv
+	 *            File IV as a 64-bit value
+	 * @param blockNum
+	 *            Index of the block in the file
+	 * @param cipherBuf
+	 *            Buffer containing the encrypted block
+	 * @param len
+	 *            Number of valid bytes in cipherBuf
+	 * @param plainBuf
+	 *            Buffer to store the decoded block into, may be cipherBuf
+	 * 
+	 * @return Number of bytes stored in plainBuf, including the block header
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             Block data is corrupt or MAC mismatch
+	 */
+	static int decodeBlock(EncFSVolume volume, long fileIv, long blockNum,
+			byte[] cipherBuf, int len, byte[] plainBuf)
+			throws EncFSCorruptDataException {
+		EncFSConfig config = volume.getConfig();
+		long ivSeed = getBlockIV(fileIv, blockNum);
+
+		try {
+			if (len == config.getBlockSize()) { // block decode
+				/*
+				 * If file holes are allowed then we need to test whether the
+				 * whole block is made up of 0's. If not (which is going to be
+				 * the case for MAC header by default), we will do block
+				 * decryption.
+				 */
+				if (config.isHolesAllowed() && isZeroBlock(cipherBuf, len)) {
+					Arrays.fill(plainBuf, 0, len, (byte) 0);
+					return len;
+				}
+
+				EncFSCrypto.blockDecode(volume, ivSeed, cipherBuf, 0, len,
+						plainBuf, 0);
+			} else { // stream decode
+				EncFSCrypto.streamDecode(volume, ivSeed, cipherBuf, 0, len,
+						plainBuf, 0);
+			}
+		} catch (InvalidAlgorithmParameterException e) {
+			throw new EncFSCorruptDataException(e);
+		} catch (IllegalBlockSizeException e) {
+			throw new EncFSCorruptDataException(e);
+		} catch (BadPaddingException e) {
+			throw new EncFSCorruptDataException(e);
+		} catch (ShortBufferException e) {
+			throw new EncFSCorruptDataException(e);
+		}
+
+		verifyBlockHeader(volume, plainBuf, len);
+
+		return len;
+	}
+
+	/**
+	 * Decode a single block of a file held in a ByteBuffer
+	 * 
+	 * Same as decodeBlock() above, but reads the encrypted block from the
+	 * remaining bytes of a heap or direct buffer (such as a memory mapped
+	 * file) without copying it into an intermediate array first. The buffer
+	 * position is advanced past the block.
+	 * 
+	 * @param volume
+	 *            Volume hosting the file
+	 * @param fileIv
+	 *            File IV as a 64-bit value
+	 * @param blockNum
+	 *            Index of the block in the file
+	 * @param cipherBuf
+	 *            Buffer containing the encrypted block
+	 * @param plainBuf
+	 *            Buffer to store the decoded block into
+	 * 
+	 * @return Number of bytes stored in plainBuf, including the block header
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             Block data is corrupt or MAC mismatch
+	 */
+	static int decodeBlock(EncFSVolume volume, long fileIv, long blockNum,
+			ByteBuffer cipherBuf, byte[] plainBuf)
+			throws EncFSCorruptDataException {
+		EncFSConfig config = volume.getConfig();
+		int len = cipherBuf.remaining();
+		long ivSeed = getBlockIV(fileIv, blockNum);
+		ByteBuffer plain = ByteBuffer.wrap(plainBuf, 0, len);
+
+		try {
+			if (len == config.getBlockSize()) { // block decode
+				// See decodeBlock() above for handling of zero blocks
+				if (config.isHolesAllowed() && isZeroBlock(cipherBuf)) {
+					Arrays.fill(plainBuf, 0, len, (byte) 0);
+					cipherBuf.position(cipherBuf.limit());
+					return len;
+				}
+
+				EncFSCrypto.blockDecode(volume, ivSeed, cipherBuf, plain);
+			} else { // stream decode
+				EncFSCrypto.streamDecode(volume, ivSeed, cipherBuf, plain);
+			}
+		} catch (InvalidAlgorithmParameterException e) {
+			throw new EncFSCorruptDataException(e);
+		} catch (IllegalBlockSizeException e) {
+			throw new EncFSCorruptDataException(e);
+		} catch (BadPaddingException e) {
+			throw new EncFSCorruptDataException(e);
+		} catch (ShortBufferException e) {
+			throw new EncFSCorruptDataException(e);
+		}
+
+		verifyBlockHeader(volume, plainBuf, len);
+
+		return len;
+	}
+
+	/**
+	 * Read raw block data from a stream until len bytes or the end of the
+	 * stream is reached
+	 * 
+	 * @param in
+	 *            Stream to read from
+	 * @param buf
+	 *            Buffer to read into
+	 * @param len
+	 *            Number of bytes to read
+	 * 
+	 * @return Number of bytes read, less than len at the end of the stream
+	 * 
+	 * @throws IOException
+	 *             Stream returned I/O error
+	 */
+	static int readFully(InputStream in, byte[] buf, int len)
+			throws IOException {
+		int bytesRead = 0;
+		while (bytesRead < len) {
+			int ret = in.read(buf, bytesRead, len - bytesRead);
+			if (ret < 0) {
+				break;
+			}
+			bytesRead += ret;
+		}
+		return bytesRead;
+	}
+
+	/**
+	 * Skip exactly n bytes of raw data in a stream
+	 * 
+	 * @param in
+	 *            Stream to skip data of
+	 * @param n
+	 *            Number of bytes to skip
+	 * 
+	 * @throws EOFException
+	 *             Stream ended before n bytes were skipped
+	 * @throws IOException
+	 *             Stream returned I/O error
+	 */
+	static void skipFully(InputStream in, long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n) {
+			long ret = in.skip(n - skipped);
+			if (ret <= 0) {
+				// skip() may not make progress, fall back to read()
+				if (in.read() < 0) {
+					throw new EOFException("Unexpected end of file");
+				}
+				ret = 1;
+			}
+			skipped += ret;
+		}
+	}
+
+	// Verify the MAC header of a decoded block
+	private static void verifyBlockHeader(EncFSVolume volume, byte[] plainBuf,
+			int len) throws EncFSCorruptDataException {
+		EncFSConfig config = volume.getConfig();
+		int numMACBytes = config.getBlockMACBytes();
+		int blockHeaderSize = numMACBytes + config.getBlockMACRandBytes();
+
+		if (blockHeaderSize > 0) {
+			long mac = EncFSCrypto.mac64AsLong(volume.getMac(), plainBuf,
+					numMACBytes, len - numMACBytes);
+			for (int i = 0; i < numMACBytes; i++) {
+				if ((byte) (mac >>> (8 * i)) != plainBuf[i]) {
+					throw new EncFSCorruptDataException("Block MAC mismatch");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compute the MAC header of a single block and encode it
+	 * 
+	 * The random bytes of the block header are expected to be filled in by the
+	 * caller. Full blocks are encoded in block mode, the final partial block of
+	 * a file in stream mode. All-zero blocks are passed through as-is if the
+	 * volume allows holes.
+	 * 
+	 * @param volume
+	 *            Volume hosting the file
+	 * @param fileIv
+	 *            File IV as a 64-bit value
+	 * @param blockNum
+	 *            Index of the block in the file
+	 * @param plainBuf
+	 *            Buffer containing the block to encode, including the header
+	 * @param len
+	 *            Number of valid bytes in plainBuf
+	 * @param cipherBuf
+	 *            Buffer to store the encoded block into
+	 * 
+	 * @return Number of bytes stored in cipherBuf
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             Block encryption failed
+	 */
+	static int encodeBlock(EncFSVolume volume, long fileIv, long blockNum,
+			byte[] plainBuf, int len, byte[] cipherBuf)
+			throws EncFSCorruptDataException {
+		EncFSConfig config = volume.getConfig();
+		int numMACBytes = config.getBlockMACBytes();
+		long ivSeed = getBlockIV(fileIv, blockNum);
+
+		// Compute MAC bytes and add them to the buffer
+		if (numMACBytes > 0) {
+			long mac = EncFSCrypto.mac64AsLong(volume.getMac(), plainBuf,
+					numMACBytes, len - numMACBytes);
+			for (int i = 0; i < numMACBytes; i++) {
+				plainBuf[i] = (byte) (mac >>> (8 * i));
+			}
+		}
+
+		try {
+			if (len == config.getBlockSize()) {
+				/*
+				 * If allowHoles is configured, we scan the buffer to determine
+				 * whether we should pass this block through as a zero block.
+				 * Note that it is intended for the presence of a MAC header to
+				 * cause this check to fail.
+				 */
+				if (config.isHolesAllowed() && isZeroBlock(plainBuf, len)) {
+					System.arraycopy(plainBuf, 0, cipherBuf, 0, len);
+					return len;
+				}
+
+				return EncFSCrypto.blockEncode(volume, ivSeed, plainBuf, 0,
+						len, cipherBuf, 0);
+			} else {
+				return EncFSCrypto.streamEncode(volume, ivSeed, plainBuf, 0,
+						len, cipherBuf, 0);
+			}
+		} catch (InvalidAlgorithmParameterException e) {
+			throw new EncFSCorruptDataException(e);
+		} catch (IllegalBlockSizeException e) {
+			throw new EncFSCorruptDataException(e);
+		} catch (BadPaddingException e) {
+			throw new EncFSCorruptDataException(e);
+		} catch (ShortBufferException e) {
+			throw new EncFSCorruptDataException(e);
+		}
+	}
+
+	// Returns true if the remaining bytes of the buffer are all zero
+	private static boolean isZeroBlock(ByteBuffer buf) {
+		for (int i = buf.position(); i < buf.limit(); i++) {
+			if (buf.get(i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Returns true if the first len bytes of the buffer are all zero
+	private static boolean isZeroBlock(byte[] buf, int len) {
+		for (int i = 0; i < len; i++) {
+			if (buf[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
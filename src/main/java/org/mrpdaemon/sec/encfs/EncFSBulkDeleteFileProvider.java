@@ -0,0 +1,45 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Optional interface for file providers that can delete many files at once
+ * 
+ * Providers implementing this interface let EncFSVolume.deletePath() hand over
+ * whole batches of paths, which is useful for backends where every request has
+ * a high fixed cost.
+ */
+public interface EncFSBulkDeleteFileProvider extends EncFSFileProvider {
+
+	/**
+	 * Delete the given files and directories
+	 * 
+	 * Directories are only passed after all of their contents, so deleting the
+	 * paths in the given order never hits a non-empty directory.
+	 * 
+	 * @param filePaths
+	 *            Paths of the files and directories to delete
+	 * 
+	 * @return true if all paths were deleted, false otherwise
+	 * 
+	 * @throws IOException
+	 *             Misc. I/O error
+	 */
+	public boolean deleteAll(List<String> filePaths) throws IOException;
+}
@@ -0,0 +1,765 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EncFSFileProvider decorator caching file metadata of another provider
+ * 
+ * Results of exists(), isDirectory(), getFileInfo() and listFiles() are cached
+ * for a limited time and up to a maximum number of paths, evicting the least
+ * recently used paths first. Listing a directory also caches the information
+ * for each of its entries.
+ * 
+ * Mutations performed through this provider (which includes all mutations done
+ * by an EncFSVolume using it) invalidate the affected paths. Changes made to
+ * the underlying storage by other means are only picked up once the cached
+ * entries expire, or after invalidateAll() is called.
+ * 
+ * The optional provider interfaces are forwarded to the underlying provider.
+ * Use supports() to find out which of them it actually implements; for the
+ * others this provider falls back to the equivalent basic operations, except
+ * for openReadWriteChannel() which then throws
+ * UnsupportedOperationException.
+ */
+public class EncFSCachingFileProvider implements EncFSDirectoryStreamProvider,
+		EncFSMappedFileProvider, EncFSRangeFileProvider,
+		EncFSChannelFileProvider, EncFSBulkDeleteFileProvider {
+
+	// Path separator used for encrypted volume paths
+	private static final String SEPARATOR = EncFSVolume.PATH_SEPARATOR;
+
+	// Kinds of cached metadata, indexes into PathEntry
+	private static final int EXISTS = 0;
+	private static final int IS_DIRECTORY = 1;
+	private static final int FILE_INFO = 2;
+	private static final int LISTING = 3;
+	private static final int KINDS = 4;
+
+	// Provider whose results are cached
+	private final EncFSFileProvider delegate;
+
+	// Time in nanoseconds after which cached entries expire
+	private final long ttlNanos;
+
+	// Cached metadata by path
+	private final EncFSLRUCache<String, PathEntry> cache;
+
+	/*
+	 * Directory path -> child paths that are cached or have cached paths below
+	 * them. Lets invalidation of a directory visit just its cached subtree.
+	 * Guarded by this provider's lock, like all cache updates.
+	 */
+	private final Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+
+	/*
+	 * Number of invalidations so far. Results fetched from the delegate are
+	 * only cached if no invalidation happened meanwhile, so that a concurrent
+	 * mutation's invalidation isn't undone by caching what was read before it.
+	 */
+	private long generation;
+
+	// Cached metadata of a single path
+	private static class PathEntry {
+		// Cached values by kind, null if not cached
+		private final Object[] values = new Object[KINDS];
+
+		// Value of System.nanoTime() after which each value is stale
+		private final long[] expiresAt = new long[KINDS];
+	}
+
+	/**
+	 * Create a new caching provider
+	 * 
+	 * @param delegate
+	 *            Provider to cache metadata of
+	 * @param ttl
+	 *            Time after which cached entries expire
+	 * @param ttlUnit
+	 *            Unit of the ttl parameter
+	 * @param maxEntries
+	 *            Maximum number of paths to cache metadata for
+	 */
+	public EncFSCachingFileProvider(EncFSFileProvider delegate, long ttl,
+			TimeUnit ttlUnit, int maxEntries) {
+		if (ttl < 0) {
+			throw new IllegalArgumentException("Negative TTL");
+		}
+		this.delegate = delegate;
+		this.ttlNanos = ttlUnit.toNanos(ttl);
+		this.cache = new EncFSLRUCache<String, PathEntry>(maxEntries) {
+			@Override
+			protected void evicted(String key, PathEntry value) {
+				unlink(key);
+			}
+		};
+	}
+
+	/**
+	 * Returns the provider whose results are cached
+	 * 
+	 * @return Underlying file provider
+	 */
+	public EncFSFileProvider getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Returns whether the underlying provider implements the given optional
+	 * provider interface
+	 * 
+	 * @param capability
+	 *            Optional interface such as EncFSRangeFileProvider
+	 * 
+	 * @return true if calls to the interface are forwarded to the underlying
+	 *         provider, false if this provider falls back to basic operations
+	 */
+	public boolean supports(Class<? extends EncFSFileProvider> capability) {
+		if (delegate instanceof EncFSCachingFileProvider) {
+			return ((EncFSCachingFileProvider) delegate).supports(capability);
+		}
+		return capability.isInstance(delegate);
+	}
+
+	/**
+	 * Drop all cached metadata
+	 * 
+	 * Should be called after the underlying storage was modified without going
+	 * through this provider.
+	 */
+	public synchronized void invalidateAll() {
+		generation++;
+		children.clear();
+		cache.clear();
+	}
+
+	/**
+	 * Drop cached metadata for the given path and everything below it
+	 * 
+	 * The listing of the path's parent directory is dropped as well.
+	 * 
+	 * @param path
+	 *            Path that was modified
+	 */
+	public synchronized void invalidate(String path) {
+		String key = normalize(path);
+		generation++;
+		dropBelow(key);
+		unlink(key);
+		dropListing(parentOf(key));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.mrpdaemon.sec.encfs.EncFSFileProvider#isDirectory(java.lang.String)
+	 */
+	public boolean isDirectory(String srcPath) throws IOException {
+		String key = normalize(srcPath);
+		Boolean result = (Boolean) getValid(key, IS_DIRECTORY);
+		if (result == null) {
+			long gen = getGeneration();
+			result = delegate.isDirectory(srcPath);
+			putValue(key, gen, IS_DIRECTORY, result);
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.mrpdaemon.sec.encfs.EncFSFileProvider#exists(java.lang.String)
+	 */
+	public boolean exists(String srcPath) throws IOException {
+		String key = normalize(srcPath);
+		Boolean result = (Boolean) getValid(key, EXISTS);
+		if (result == null) {
+			long gen = getGeneration();
+			result = delegate.exists(srcPath);
+			putValue(key, gen, EXISTS, result);
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.mrpdaemon.sec.encfs.EncFSFileProvider#getSeparator()
+	 */
+	public String getSeparator() {
+		return delegate.getSeparator();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.mrpdaemon.sec.encfs.EncFSFileProvider#getRootPath()
+	 */
+	public String getRootPath() {
+		return delegate.getRootPath();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.mrpdaemon.sec.encfs.EncFSFileProvider#getFileInfo(java.lang.String)
+	 */
+	public EncFSFileInfo getFileInfo(String srcPath) throws IOException {
+		String key = normalize(srcPath);
+		EncFSFileInfo result = (EncFSFileInfo) getValid(key, FILE_INFO);
+		if (result == null) {
+			long gen = getGeneration();
+			result = delegate.getFileInfo(srcPath);
+			if (result != null) {
+				cacheFileInfo(key, gen, result);
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.mrpdaemon.sec.encfs.EncFSFileProvider#listFiles(java.lang.String)
+	 */
+	public List<EncFSFileInfo> listFiles(String dirPath) throws IOException {
+		String key = normalize(dirPath);
+		List<EncFSFileInfo> result = getListing(key);
+		if (result == null) {
+			long gen = getGeneration();
+			result = new ArrayList<EncFSFileInfo>(delegate.listFiles(dirPath));
+			cacheListing(key, gen, result);
+		}
+
+		// Callers may modify the returned list
+		return new ArrayList<EncFSFileInfo>(result);
+	}
+
+	/**
+	 * Open a stream over the entries of a directory
+	 * 
+	 * A cached listing of the directory is used if there is one, otherwise the
+	 * underlying provider's stream is returned if it has one, else the
+	 * directory is listed through listFiles().
+	 * 
+	 * @param dirPath
+	 *            Path to the directory to list
+	 * 
+	 * @return Stream over the directory entries, which must be closed
+	 * 
+	 * @throws IOException
+	 *             Path doesn't exist or misc. I/O error
+	 */
+	public DirectoryStream<EncFSFileInfo> newDirectoryStream(String dirPath)
+			throws IOException {
+		List<EncFSFileInfo> listing = getListing(normalize(dirPath));
+		if (listing == null
+				&& supports(EncFSDirectoryStreamProvider.class)) {
+			return ((EncFSDirectoryStreamProvider) delegate)
+					.newDirectoryStream(dirPath);
+		}
+		if (listing == null) {
+			listing = listFiles(dirPath);
+		}
+
+		return new EncFSMappedDirectoryStream<EncFSFileInfo, EncFSFileInfo>(
+				listing, null) {
+			@Override
+			protected EncFSFileInfo map(EncFSFileInfo entry) {
+				return entry;
+			}
+		};
+	}
+
+	/**
+	 * Map the contents of the given file into memory for reading
+	 * 
+	 * @param srcFilePath
+	 *            Path to the source file
+	 * 
+	 * @return Read-only buffer holding the file contents, null if the
+	 *         underlying provider doesn't map files or can't map this one
+	 * 
+	 * @throws IOException
+	 *             Source file doesn't exist or misc. I/O error
+	 */
+	public ByteBuffer mapFile(String srcFilePath) throws IOException {
+		if (supports(EncFSMappedFileProvider.class)) {
+			return ((EncFSMappedFileProvider) delegate).mapFile(srcFilePath);
+		}
+		return null;
+	}
+
+	/**
+	 * Open an InputStream to a range of the given file
+	 * 
+	 * If the underlying provider can't open files at an offset, the whole
+	 * file is opened and skipped forward to the offset instead.
+	 * 
+	 * @param srcFilePath
+	 *            Path to the source file
+	 * @param offset
+	 *            Offset in bytes to start reading the file from
+	 * @param length
+	 *            Maximum number of bytes to read, only enforced by providers
+	 *            supporting ranges
+	 * 
+	 * @return InputStream to read the range of the file from
+	 * 
+	 * @throws IOException
+	 *             Source file doesn't exist or misc. I/O error
+	 */
+	public InputStream openInputStream(String srcFilePath, long offset,
+			long length) throws IOException {
+		if (supports(EncFSRangeFileProvider.class)) {
+			return ((EncFSRangeFileProvider) delegate).openInputStream(
+					srcFilePath, offset, length);
+		}
+
+		InputStream in = delegate.openInputStream(srcFilePath);
+		try {
+			long remaining = offset;
+			while (remaining > 0) {
+				long skipped = in.skip(remaining);
+				if (skipped <= 0) {
+					// skip() may stop early, read a byte to tell EOF apart
+					if (in.read() < 0) {
+						break;
+					}
+					skipped = 1;
+				}
+				remaining -= skipped;
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return in;
+	}
+
+	/**
+	 * Open a channel for reading and writing the given existing file
+	 * 
+	 * Cached metadata of the file is dropped when the channel is opened and
+	 * again when it is closed.
+	 * 
+	 * @param dstFilePath
+	 *            Path to the file
+	 * 
+	 * @return Channel positioned at the start of the file
+	 * 
+	 * @throws IOException
+	 *             File doesn't exist or misc. I/O error
+	 * @throws UnsupportedOperationException
+	 *             The underlying provider doesn't support random access writes
+	 */
+	public SeekableByteChannel openReadWriteChannel(final String dstFilePath)
+			throws IOException {
+		if (!supports(EncFSChannelFileProvider.class)) {
+			throw new UnsupportedOperationException(
+					"File provider doesn't support random access writes");
+		}
+		invalidateFile(dstFilePath);
+
+		final SeekableByteChannel channel = ((EncFSChannelFileProvider) delegate)
+				.openReadWriteChannel(dstFilePath);
+		return new SeekableByteChannel() {
+			public int read(ByteBuffer dst) throws IOException {
+				return channel.read(dst);
+			}
+
+			public int write(ByteBuffer src) throws IOException {
+				return channel.write(src);
+			}
+
+			public long position() throws IOException {
+				return channel.position();
+			}
+
+			public SeekableByteChannel position(long newPosition)
+					throws IOException {
+				channel.position(newPosition);
+				return this;
+			}
+
+			public long size() throws IOException {
+				return channel.size();
+			}
+
+			public SeekableByteChannel truncate(long size) throws IOException {
+				channel.truncate(size);
+				return this;
+			}
+
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+
+			public void close() throws IOException {
+				try {
+					channel.close();
+				} finally {
+					invalidateFile(dstFilePath);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Delete the given files/directories in order
+	 * 
+	 * Paths are deleted one by one if the underlying provider doesn't support
+	 * bulk deletes.
+	 * 
+	 * @param filePaths
+	 *            Paths to delete, directories listed after their contents
+	 * 
+	 * @return true if all paths were deleted, false otherwise
+	 * 
+	 * @throws IOException
+	 *             Misc. I/O error
+	 */
+	public boolean deleteAll(List<String> filePaths) throws IOException {
+		try {
+			if (supports(EncFSBulkDeleteFileProvider.class)) {
+				return ((EncFSBulkDeleteFileProvider) delegate)
+						.deleteAll(filePaths);
+			}
+			for (String filePath : filePaths) {
+				if (!delegate.delete(filePath)) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			for (String filePath : filePaths) {
+				invalidate(filePath);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.mrpdaemon.sec.encfs.EncFSFileProvider#move(java.lang.String,
+	 * java.lang.String)
+	 */
+	public boolean move(String srcPath, String dstPath) throws IOException {
+		try {
+			return delegate.move(srcPath, dstPath);
+		} finally {
+			invalidate(srcPath);
+			invalidate(dstPath);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.mrpdaemon.sec.encfs.EncFSFileProvider#delete(java.lang.String)
+	 */
+	public boolean delete(String srcPath) throws IOException {
+		try {
+			return delegate.delete(srcPath);
+		} finally {
+			invalidate(srcPath);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.mrpdaemon.sec.encfs.EncFSFileProvider#mkdir(java.lang.String)
+	 */
+	public boolean mkdir(String dirPath) throws IOException {
+		try {
+			return delegate.mkdir(dirPath);
+		} finally {
+			invalidateFile(dirPath);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.mrpdaemon.sec.encfs.EncFSFileProvider#mkdirs(java.lang.String)
+	 */
+	public boolean mkdirs(String dirPath) throws IOException {
+		try {
+			return delegate.mkdirs(dirPath);
+		} finally {
+			// Any of the intermediate directories may have been created
+			String path = normalize(dirPath);
+			while (!path.equals(SEPARATOR)) {
+				invalidateFile(path);
+				path = parentOf(path);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.mrpdaemon.sec.encfs.EncFSFileProvider#createFile(java.lang.String)
+	 */
+	public EncFSFileInfo createFile(String dstFilePath) throws IOException {
+		try {
+			return delegate.createFile(dstFilePath);
+		} finally {
+			invalidateFile(dstFilePath);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.mrpdaemon.sec.encfs.EncFSFileProvider#copy(java.lang.String,
+	 * java.lang.String)
+	 */
+	public boolean copy(String srcFilePath, String dstFilePath)
+			throws IOException {
+		try {
+			return delegate.copy(srcFilePath, dstFilePath);
+		} finally {
+			invalidateFile(dstFilePath);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.mrpdaemon.sec.encfs.EncFSFileProvider#openInputStream(java.lang.String)
+	 */
+	public InputStream openInputStream(String srcFilePath) throws IOException {
+		return delegate.openInputStream(srcFilePath);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.mrpdaemon.sec.encfs.EncFSFileProvider#openOutputStream(java.lang.String
+	 * , long)
+	 */
+	public OutputStream openOutputStream(final String dstFilePath,
+			long outputLength) throws IOException {
+		invalidateFile(dstFilePath);
+
+		// The file's size and modification time change as it is written
+		return new FilterOutputStream(delegate.openOutputStream(dstFilePath,
+				outputLength)) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					invalidateFile(dstFilePath);
+				}
+			}
+		};
+	}
+
+	/*
+	 * Drop cached metadata for a path that was created or written to, along
+	 * with the listing of its parent. Unlike invalidate() this leaves paths
+	 * below it alone, as creating or writing a path doesn't affect them.
+	 */
+	private synchronized void invalidateFile(String path) {
+		String key = normalize(path);
+		generation++;
+		if (cache.remove(key) != null) {
+			unlink(key);
+		}
+		dropListing(parentOf(key));
+	}
+
+	// Returns the current invalidation count, to be passed to the methods
+	// caching a result fetched from the delegate afterwards
+	private synchronized long getGeneration() {
+		return generation;
+	}
+
+	// Cache a directory listing and the information about each of its entries
+	private synchronized void cacheListing(String key, long gen,
+			List<EncFSFileInfo> listing) {
+		if (gen != generation) {
+			return;
+		}
+		setValue(getEntry(key), LISTING, listing);
+
+		// Listing the directory also tells us about each entry
+		for (EncFSFileInfo fileInfo : listing) {
+			setFileInfo(EncFSVolume.combinePath(key, fileInfo.getName()),
+					fileInfo);
+		}
+	}
+
+	// Cache information about a single path
+	private synchronized void cacheFileInfo(String key, long gen,
+			EncFSFileInfo fileInfo) {
+		if (gen == generation) {
+			setFileInfo(key, fileInfo);
+		}
+	}
+
+	// Cache a single value for the given path
+	private synchronized void putValue(String key, long gen, int kind,
+			Object value) {
+		if (gen == generation) {
+			setValue(getEntry(key), kind, value);
+		}
+	}
+
+	// Store information about a single path
+	private void setFileInfo(String key, EncFSFileInfo fileInfo) {
+		PathEntry entry = getEntry(key);
+		setValue(entry, FILE_INFO, fileInfo);
+		setValue(entry, EXISTS, Boolean.TRUE);
+		setValue(entry, IS_DIRECTORY, fileInfo.isDirectory());
+	}
+
+	// Store a value into an entry, expiring after the TTL
+	private void setValue(PathEntry entry, int kind, Object value) {
+		entry.values[kind] = value;
+		entry.expiresAt[kind] = System.nanoTime() + ttlNanos;
+	}
+
+	// Returns the cached value for the given path, null if missing or stale
+	private synchronized Object getValid(String key, int kind) {
+		PathEntry entry = cache.get(key);
+		if (entry == null || entry.values[kind] == null) {
+			return null;
+		}
+		if (System.nanoTime() - entry.expiresAt[kind] > 0) {
+			entry.values[kind] = null;
+			return null;
+		}
+		return entry.values[kind];
+	}
+
+	// Returns the cached listing of the given directory, null if not cached
+	@SuppressWarnings("unchecked")
+	private List<EncFSFileInfo> getListing(String key) {
+		return (List<EncFSFileInfo>) getValid(key, LISTING);
+	}
+
+	// Drop the cached listing of the given directory
+	private void dropListing(String key) {
+		PathEntry entry = cache.get(key);
+		if (entry != null) {
+			entry.values[LISTING] = null;
+		}
+	}
+
+	// Returns the entry for the given path, creating it if not cached yet
+	private PathEntry getEntry(String key) {
+		PathEntry entry = cache.get(key);
+		if (entry == null) {
+			entry = new PathEntry();
+			cache.put(key, entry);
+			link(key);
+		}
+		return entry;
+	}
+
+	// Record the given path in the directory index of its ancestors
+	private void link(String key) {
+		while (!key.equals(SEPARATOR)) {
+			String parent = parentOf(key);
+			Set<String> siblings = children.get(parent);
+			if (siblings != null) {
+				// The parent is linked already
+				siblings.add(key);
+				return;
+			}
+			siblings = new HashSet<String>();
+			siblings.add(key);
+			children.put(parent, siblings);
+			key = parent;
+		}
+	}
+
+	// Remove the given uncached path from the directory index if nothing
+	// below it is cached either, pruning ancestors that become unused
+	private void unlink(String key) {
+		while (!key.equals(SEPARATOR) && !children.containsKey(key)
+				&& !cache.containsKey(key)) {
+			String parent = parentOf(key);
+			Set<String> siblings = children.get(parent);
+			if (siblings == null) {
+				return;
+			}
+			siblings.remove(key);
+			if (!siblings.isEmpty()) {
+				return;
+			}
+			children.remove(parent);
+			key = parent;
+		}
+	}
+
+	// Drop the given path and all cached paths below it, leaving the path's
+	// own link to its parent to the caller
+	private void dropBelow(String key) {
+		Set<String> below = children.remove(key);
+		if (below != null) {
+			for (String child : below) {
+				dropBelow(child);
+			}
+		}
+		cache.remove(key);
+	}
+
+	// Strip the trailing separator from the given path
+	private static String normalize(String path) {
+		if (path.length() > 1 && path.endsWith(SEPARATOR)) {
+			return path.substring(0, path.length() - 1);
+		}
+		if (path.length() == 0) {
+			return SEPARATOR;
+		}
+		return path;
+	}
+
+	// Returns the parent of the given normalized path
+	private static String parentOf(String path) {
+		int index = path.lastIndexOf(SEPARATOR);
+		if (index <= 0) {
+			return SEPARATOR;
+		}
+		return path.substring(0, index);
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Optional interface for file providers supporting random access writes
+ * 
+ * Providers implementing this interface let EncFSFile.openChannel(true)
+ * modify and append to existing files by rewriting only the affected blocks,
+ * rather than rewriting the whole file through openOutputStream().
+ */
+public interface EncFSChannelFileProvider extends EncFSFileProvider {
+
+	/**
+	 * Open a channel for reading and writing the given file
+	 * 
+	 * @param dstFilePath
+	 *            Path to the file
+	 * 
+	 * @return SeekableByteChannel to read from and write to the file
+	 * 
+	 * @throws IOException
+	 *             File doesn't exist or misc. I/O error
+	 */
+	public SeekableByteChannel openReadWriteChannel(String dstFilePath)
+			throws IOException;
+}
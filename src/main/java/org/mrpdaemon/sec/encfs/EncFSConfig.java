@@ -42,6 +42,12 @@ public class EncFSConfig {
 	 */
 	private boolean chainedNameIV;
 
+	/*
+	 * Whether the IV of a file's name is chained into the file header IV, which
+	 * makes file contents depend on the path of the file.
+	 */
+	private boolean externalIVChaining;
+
 	// Whether holes are allowed in files.
 	private boolean holesAllowed;
 
@@ -168,6 +174,29 @@ public class EncFSConfig {
 		this.chainedNameIV = chainedNameIV;
 	}
 
+	/**
+	 * When using external IV chaining, the IV of a file's name is used to
+	 * encrypt the file header, so the file contents depend on its path. This
+	 * library doesn't support it: such volumes can be opened and browsed, but
+	 * not created, and their file contents can't be read or written.
+	 * 
+	 * @return whether external IV chaining is being used.
+	 */
+	public boolean isExternalIVChaining() {
+		return externalIVChaining;
+	}
+
+	/**
+	 * When using external IV chaining, the IV of a file's name is used to
+	 * encrypt the file header, so the file contents depend on its path.
+	 * 
+	 * @param externalIVChaining
+	 *            whether external IV chaining is being used.
+	 */
+	public void setExternalIVChaining(boolean externalIVChaining) {
+		this.externalIVChaining = externalIVChaining;
+	}
+
 	/**
 	 * Checks whether holes are allowed in files.
 	 * 
@@ -356,7 +385,8 @@ public class EncFSConfig {
 	public String toString() {
 		return "EncFSConfig [volumeKeySize=" + volumeKeySize + ", blockSize="
 				+ blockSize + ", uniqueIV=" + uniqueIV + ", chainedNameIV="
-				+ chainedNameIV + ", holesAllowed=" + holesAllowed
+				+ chainedNameIV + ", externalIVChaining="
+				+ externalIVChaining + ", holesAllowed=" + holesAllowed
 				+ ", encodedKeyLength=" + encodedKeyLength + ", encodedKeyStr="
 				+ encodedKeyStr + ", saltLength=" + saltLength + ", saltStr="
 				+ saltStr + ", iterationCount=" + iterationCount
@@ -20,13 +20,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 /**
@@ -34,8 +33,19 @@ import org.xml.sax.SAXException;
  */
 public class EncFSConfigParser {
 
-	private static String getNodeValue(Node n) {
-		return n.getChildNodes().item(0).getNodeValue();
+	/*
+	 * Shared StAX factory. Factories are safe to share between threads once
+	 * configured, and creating one per parse is comparatively expensive.
+	 */
+	private static final XMLInputFactory inputFactory = newInputFactory();
+
+	// Create a StAX factory that ignores DTDs and external entities
+	private static XMLInputFactory newInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				Boolean.FALSE);
+		return factory;
 	}
 
 	/**
@@ -109,8 +119,13 @@ public class EncFSConfigParser {
 
 		// Parse the configuration file
 		try {
-			config = EncFSConfigParser.parseFile(fileProvider
-					.openInputStream(fileProvider.getRootPath() + path));
+			InputStream inputStream = fileProvider.openInputStream(fileProvider
+					.getRootPath() + path);
+			try {
+				config = EncFSConfigParser.parseFile(inputStream);
+			} finally {
+				inputStream.close();
+			}
 		} catch (ParserConfigurationException e2) {
 			throw new EncFSUnsupportedException("XML parser not supported");
 		} catch (SAXException e2) {
@@ -125,6 +140,9 @@ public class EncFSConfigParser {
 	/**
 	 * Parse the given configuration file from a stream
 	 * 
+	 * The file is read in a single pass with a streaming parser. DTDs and
+	 * external entities are not processed.
+	 * 
 	 * @param inputStream
 	 *            InputStream for the config file
 	 * 
@@ -143,78 +161,121 @@ public class EncFSConfigParser {
 	public static EncFSConfig parseFile(InputStream inputStream)
 			throws ParserConfigurationException, SAXException, IOException,
 			EncFSInvalidConfigException {
-		EncFSConfig config = new EncFSConfig();
+		try {
+			XMLStreamReader reader = inputFactory
+					.createXMLStreamReader(inputStream);
+			try {
+				return parseConfig(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			if (e.getNestedException() instanceof IOException) {
+				throw (IOException) e.getNestedException();
+			}
+			throw new SAXException(e);
+		}
+	}
+
+	// Find the <cfg> element and parse its children into a config object
+	private static EncFSConfig parseConfig(XMLStreamReader reader)
+			throws XMLStreamException, EncFSInvalidConfigException {
+		while (reader.hasNext()) {
+			if (reader.next() == XMLStreamConstants.START_ELEMENT
+					&& reader.getLocalName().equals("cfg")) {
+				return parseCfgElement(reader);
+			}
+		}
 
-		DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-		Document doc = dBuilder.parse(inputStream);
-		doc.getDocumentElement().normalize();
+		throw new EncFSInvalidConfigException(
+				"<cfg> element not present in config file");
+	}
 
-		NodeList cfgNodeList = doc.getElementsByTagName("cfg").item(0)
-				.getChildNodes();
+	// Parse the children of the <cfg> element the reader is positioned on
+	private static EncFSConfig parseCfgElement(XMLStreamReader reader)
+			throws XMLStreamException, EncFSInvalidConfigException {
+		EncFSConfig config = new EncFSConfig();
+		boolean empty = true;
 
-		if (cfgNodeList.getLength() == 0) {
-			throw new EncFSInvalidConfigException(
-					"<cfg> element not present in config file");
-		}
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			empty = false;
+			String name = reader.getLocalName();
 
-		for (int i = 0; i < cfgNodeList.getLength(); i++) {
-			Node cfgNode = cfgNodeList.item(i);
-
-			if (cfgNode.getNodeType() == Node.ELEMENT_NODE) {
-				if (cfgNode.getNodeName().equals("nameAlg")) {
-					NodeList nameAlgNodeList = cfgNode.getChildNodes();
-					for (int j = 0; j < nameAlgNodeList.getLength(); j++) {
-						Node nameAlgChildNode = nameAlgNodeList.item(j);
-						if (nameAlgChildNode.getNodeName().equals("name")) {
-							String algName = getNodeValue(nameAlgChildNode);
-							if (algName.equals("nameio/block")) {
-								config.setNameAlgorithm(EncFSConfig.ENCFS_CONFIG_NAME_ALG_BLOCK);
-							} else if (algName.equals("nameio/stream")) {
-								config.setNameAlgorithm(EncFSConfig.ENCFS_CONFIG_NAME_ALG_STREAM);
-							} else {
-								throw new EncFSInvalidConfigException(
-										"Unknown name algorithm in config file: "
-												+ algName);
-							}
+			if (name.equals("nameAlg")) {
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					if (reader.getLocalName().equals("name")) {
+						String algName = reader.getElementText();
+						if (algName.equals("nameio/block")) {
+							config.setNameAlgorithm(EncFSConfig.ENCFS_CONFIG_NAME_ALG_BLOCK);
+						} else if (algName.equals("nameio/stream")) {
+							config.setNameAlgorithm(EncFSConfig.ENCFS_CONFIG_NAME_ALG_STREAM);
+						} else {
+							throw new EncFSInvalidConfigException(
+									"Unknown name algorithm in config file: "
+											+ algName);
 						}
+					} else {
+						skipElement(reader);
 					}
-				} else if (cfgNode.getNodeName().equals("keySize")) {
-					config.setVolumeKeySize(Integer
-							.parseInt(getNodeValue(cfgNode)));
-				} else if (cfgNode.getNodeName().equals("blockSize")) {
-					config.setBlockSize(Integer.parseInt(getNodeValue(cfgNode)));
-				} else if (cfgNode.getNodeName().equals("uniqueIV")) {
-					config.setUniqueIV(Integer.parseInt(getNodeValue(cfgNode)) == 1);
-				} else if (cfgNode.getNodeName().equals("chainedNameIV")) {
-					config.setChainedNameIV(Integer
-							.parseInt(getNodeValue(cfgNode)) == 1);
-				} else if (cfgNode.getNodeName().equals("allowHoles")) {
-					config.setHolesAllowed(Integer
-							.parseInt(getNodeValue(cfgNode)) == 1);
-				} else if (cfgNode.getNodeName().equals("encodedKeySize")) {
-					config.setEncodedKeyLength(Integer
-							.parseInt(getNodeValue(cfgNode)));
-				} else if (cfgNode.getNodeName().equals("encodedKeyData")) {
-					config.setEncodedKeyStr(getNodeValue(cfgNode));
-				} else if (cfgNode.getNodeName().equals("saltLen")) {
-					config.setSaltLength(Integer
-							.parseInt(getNodeValue(cfgNode)));
-				} else if (cfgNode.getNodeName().equals("saltData")) {
-					config.setSaltStr(getNodeValue(cfgNode));
-				} else if (cfgNode.getNodeName().equals("kdfIterations")) {
-					config.setIterationCount(Integer
-							.parseInt(getNodeValue(cfgNode)));
-				} else if (cfgNode.getNodeName().equals("blockMACBytes")) {
-					config.setBlockMACBytes(Integer
-							.parseInt(getNodeValue(cfgNode)));
-				} else if (cfgNode.getNodeName().equals("blockMACRandBytes")) {
-					config.setBlockMACRandBytes(Integer
-							.parseInt(getNodeValue(cfgNode)));
 				}
+			} else if (name.equals("keySize")) {
+				config.setVolumeKeySize(Integer.parseInt(reader
+						.getElementText()));
+			} else if (name.equals("blockSize")) {
+				config.setBlockSize(Integer.parseInt(reader.getElementText()));
+			} else if (name.equals("uniqueIV")) {
+				config.setUniqueIV(Integer.parseInt(reader.getElementText()) == 1);
+			} else if (name.equals("chainedNameIV")) {
+				config.setChainedNameIV(Integer.parseInt(reader
+						.getElementText()) == 1);
+			} else if (name.equals("externalIVChaining")) {
+				config.setExternalIVChaining(Integer.parseInt(reader
+						.getElementText()) == 1);
+			} else if (name.equals("allowHoles")) {
+				config.setHolesAllowed(Integer.parseInt(reader
+						.getElementText()) == 1);
+			} else if (name.equals("encodedKeySize")) {
+				config.setEncodedKeyLength(Integer.parseInt(reader
+						.getElementText()));
+			} else if (name.equals("encodedKeyData")) {
+				config.setEncodedKeyStr(reader.getElementText());
+			} else if (name.equals("saltLen")) {
+				config.setSaltLength(Integer.parseInt(reader.getElementText()));
+			} else if (name.equals("saltData")) {
+				config.setSaltStr(reader.getElementText());
+			} else if (name.equals("kdfIterations")) {
+				config.setIterationCount(Integer.parseInt(reader
+						.getElementText()));
+			} else if (name.equals("blockMACBytes")) {
+				config.setBlockMACBytes(Integer.parseInt(reader
+						.getElementText()));
+			} else if (name.equals("blockMACRandBytes")) {
+				config.setBlockMACRandBytes(Integer.parseInt(reader
+						.getElementText()));
+			} else {
+				skipElement(reader);
 			}
 		}
 
+		if (empty) {
+			throw new EncFSInvalidConfigException(
+					"<cfg> element not present in config file");
+		}
+
 		return config;
 	}
+
+	// Skip past the end of the element the reader is positioned on
+	private static void skipElement(XMLStreamReader reader)
+			throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
 }
\ No newline at end of file
@@ -16,6 +16,7 @@
 package org.mrpdaemon.sec.encfs;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
@@ -23,7 +24,9 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.StringTokenizer;
 
 import javax.crypto.BadPaddingException;
@@ -33,6 +36,7 @@ import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -43,6 +47,25 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class EncFSCrypto {
 
+	// Length in bytes of HMAC-SHA1 output
+	private static final int MAC_LENGTH = 20;
+
+	// Offset of the MAC output area in the scratch buffer
+	private static final int SCRATCH_MAC_OFFSET = EncFSVolume.IV_LENGTH + 8;
+
+	/*
+	 * Per-thread scratch buffer used for IV derivation and MAC computation, to
+	 * avoid allocating temporary arrays for every block. The first
+	 * IV_LENGTH + 8 bytes hold the IV/seed concatenation and the following
+	 * MAC_LENGTH bytes hold MAC output.
+	 */
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[SCRATCH_MAC_OFFSET + MAC_LENGTH];
+		}
+	};
+
 	/**
 	 * Create a new Mac object for the given key.
 	 * 
@@ -121,12 +144,13 @@ public class EncFSCrypto {
 	}
 
 	// Returns an IvParameterSpec for the given iv/seed
-	private static IvParameterSpec newIvSpec(Mac mac, byte[] iv, byte[] ivSeed) {
+	private static IvParameterSpec newIvSpec(EncFSHmacSha1 ivHmac, Mac mac,
+			byte[] iv, byte[] ivSeed) {
 
 		// TODO: Verify input byte[] lengths, raise Exception on bad ivSeed
 		// length
 
-		byte[] concat = new byte[EncFSVolume.IV_LENGTH + 8];
+		byte[] concat = scratch.get();
 		for (int i = 0; i < EncFSVolume.IV_LENGTH; i++)
 			concat[i] = iv[i];
 
@@ -142,20 +166,70 @@ public class EncFSCrypto {
 				concat[i] = ivSeed[EncFSVolume.IV_LENGTH + 7 - i];
 		}
 
+		return newIvSpec(ivHmac, mac, concat);
+	}
+
+	// Returns an IvParameterSpec for the given iv and 64-bit seed
+	private static IvParameterSpec newIvSpec(EncFSHmacSha1 ivHmac, Mac mac,
+			byte[] iv, long ivSeed) {
+		byte[] concat = scratch.get();
+		System.arraycopy(iv, 0, concat, 0, EncFSVolume.IV_LENGTH);
+
+		// Seed bytes are used in little endian order
+		for (int i = 0; i < 8; i++)
+			concat[EncFSVolume.IV_LENGTH + i] = (byte) (ivSeed >>> (8 * i));
+
+		return newIvSpec(ivHmac, mac, concat);
+	}
+
+	/*
+	 * Returns an IvParameterSpec from the iv/seed concatenation in scratch.
+	 * Uses the precomputed HMAC state of the volume key if given, the Mac
+	 * otherwise.
+	 */
+	private static IvParameterSpec newIvSpec(EncFSHmacSha1 ivHmac, Mac mac,
+			byte[] concat) {
+		if (ivHmac != null) {
+			ivHmac.mac(concat, 0, EncFSVolume.IV_LENGTH + 8, concat,
+					SCRATCH_MAC_OFFSET);
+		} else {
+			mac.reset();
+			mac.update(concat, 0, EncFSVolume.IV_LENGTH + 8);
+			try {
+				mac.doFinal(concat, SCRATCH_MAC_OFFSET);
+			} catch (ShortBufferException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
 		// Take first 16 bytes of the SHA-1 output (20 bytes)
-		byte[] ivResult = Arrays.copyOfRange(mac.doFinal(concat), 0,
+		return new IvParameterSpec(concat, SCRATCH_MAC_OFFSET,
 				EncFSVolume.IV_LENGTH);
+	}
 
-		return new IvParameterSpec(ivResult);
+	/*
+	 * Initialize the given cipher in the requested mode. The key has already
+	 * been accepted when its Mac was created, so an InvalidKeyException here
+	 * means the cipher can't be used at all rather than a bad input.
+	 */
+	private static void cipherInit(Key key, Mac mac, EncFSHmacSha1 ivHmac,
+			int opMode, Cipher cipher, byte[] iv, byte[] ivSeed)
+			throws InvalidAlgorithmParameterException {
+		try {
+			cipher.init(opMode, key, newIvSpec(ivHmac, mac, iv, ivSeed));
+		} catch (InvalidKeyException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
-	// Initialize the given cipher in the requested mode
-	private static void cipherInit(Key key, Mac mac, int opMode, Cipher cipher,
-			byte[] iv, byte[] ivSeed) throws InvalidAlgorithmParameterException {
+	// Initialize the given cipher in the requested mode with a 64-bit seed
+	private static void cipherInit(Key key, Mac mac, EncFSHmacSha1 ivHmac,
+			int opMode, Cipher cipher, byte[] iv, long ivSeed)
+			throws InvalidAlgorithmParameterException {
 		try {
-			cipher.init(opMode, key, newIvSpec(mac, iv, ivSeed));
+			cipher.init(opMode, key, newIvSpec(ivHmac, mac, iv, ivSeed));
 		} catch (InvalidKeyException e) {
-			e.printStackTrace();
+			throw new IllegalStateException(e);
 		}
 	}
 
@@ -177,8 +251,8 @@ public class EncFSCrypto {
 	public static void cipherInit(EncFSVolume volume, int opMode,
 			Cipher cipher, byte[] ivSeed)
 			throws InvalidAlgorithmParameterException {
-		cipherInit(volume.getKey(), volume.getMac(), opMode, cipher,
-				volume.getIV(), ivSeed);
+		cipherInit(volume.getKey(), volume.getMac(), volume.getIvHmac(),
+				opMode, cipher, volume.getIV(), ivSeed);
 	}
 
 	/**
@@ -282,7 +356,7 @@ public class EncFSCrypto {
 		byte[] clearVolKeyData = null;
 		try {
 			clearVolKeyData = streamDecode(newStreamCipher(), mac, passKey,
-					passIvData, ivSeed, encryptedVolKey);
+					null, passIvData, ivSeed, encryptedVolKey);
 		} catch (InvalidAlgorithmParameterException e) {
 			throw new EncFSInvalidConfigException(e);
 		} catch (IllegalBlockSizeException e) {
@@ -345,7 +419,7 @@ public class EncFSCrypto {
 		byte[] cipherVolKeyData = null;
 		try {
 			cipherVolKeyData = streamEncode(newStreamCipher(), mac, passKey,
-					passIvData, mac32, volKeyData);
+					null, passIvData, mac32, volKeyData);
 		} catch (InvalidAlgorithmParameterException e) {
 			throw new EncFSInvalidConfigException(e);
 		} catch (IllegalBlockSizeException e) {
@@ -409,14 +483,15 @@ public class EncFSCrypto {
 
 	// Decode the given input bytes using stream cipher
 	private static byte[] streamDecode(Cipher cipher, Mac mac, Key key,
-			byte[] iv, byte[] ivSeed, byte[] data, int offset, int len)
+			EncFSHmacSha1 ivHmac, byte[] iv, byte[] ivSeed, byte[] data,
+			int offset, int len)
 			throws EncFSUnsupportedException,
 			InvalidAlgorithmParameterException, IllegalBlockSizeException,
 			BadPaddingException {
 		// First round uses IV seed + 1 for IV generation
 		byte[] ivSeedPlusOne = getIvSeedPlusOne(ivSeed);
 
-		cipherInit(key, mac, Cipher.DECRYPT_MODE, cipher, iv, ivSeedPlusOne);
+		cipherInit(key, mac, ivHmac, Cipher.DECRYPT_MODE, cipher, iv, ivSeedPlusOne);
 		byte[] firstDecResult = cipher.doFinal(data, offset, len);
 
 		unshuffleBytes(firstDecResult);
@@ -424,7 +499,7 @@ public class EncFSCrypto {
 		byte[] flipBytesResult = flipBytes(firstDecResult);
 
 		// Second round of decryption with IV seed itself used for IV generation
-		cipherInit(key, mac, Cipher.DECRYPT_MODE, cipher, iv, ivSeed);
+		cipherInit(key, mac, ivHmac, Cipher.DECRYPT_MODE, cipher, iv, ivSeed);
 		byte[] result = cipher.doFinal(flipBytesResult);
 
 		unshuffleBytes(result);
@@ -434,11 +509,12 @@ public class EncFSCrypto {
 
 	// Decode the given input bytes using stream cipher
 	private static byte[] streamDecode(Cipher cipher, Mac mac, Key key,
-			byte[] iv, byte[] ivSeed, byte[] data)
+			EncFSHmacSha1 ivHmac, byte[] iv, byte[] ivSeed, byte[] data)
 			throws EncFSUnsupportedException,
 			InvalidAlgorithmParameterException, IllegalBlockSizeException,
 			BadPaddingException {
-		return streamDecode(cipher, mac, key, iv, ivSeed, data, 0, data.length);
+		return streamDecode(cipher, mac, key, ivHmac, iv, ivSeed, data, 0,
+				data.length);
 	}
 
 	/**
@@ -467,7 +543,8 @@ public class EncFSCrypto {
 			InvalidAlgorithmParameterException, IllegalBlockSizeException,
 			BadPaddingException {
 		return streamDecode(volume.getStreamCipher(), volume.getMac(),
-				volume.getKey(), volume.getIV(), ivSeed, data);
+				volume.getKey(), volume.getIvHmac(), volume.getIV(), ivSeed,
+				data);
 	}
 
 	/**
@@ -500,12 +577,14 @@ public class EncFSCrypto {
 			InvalidAlgorithmParameterException, IllegalBlockSizeException,
 			BadPaddingException {
 		return streamDecode(volume.getStreamCipher(), volume.getMac(),
-				volume.getKey(), volume.getIV(), ivSeed, data, offset, len);
+				volume.getKey(), volume.getIvHmac(), volume.getIV(), ivSeed,
+				data, offset, len);
 	}
 
 	// Encode the given data in stream mode
 	private static byte[] streamEncode(Cipher cipher, Mac mac, Key key,
-			byte[] iv, byte[] ivSeed, byte[] data, int offset, int len)
+			EncFSHmacSha1 ivHmac, byte[] iv, byte[] ivSeed, byte[] data,
+			int offset, int len)
 			throws EncFSUnsupportedException,
 			InvalidAlgorithmParameterException, IllegalBlockSizeException,
 			BadPaddingException {
@@ -515,7 +594,7 @@ public class EncFSCrypto {
 		byte[] encBuf = Arrays.copyOfRange(data, offset, offset + len);
 		shuffleBytes(encBuf);
 
-		cipherInit(key, mac, Cipher.ENCRYPT_MODE, cipher, iv, ivSeed);
+		cipherInit(key, mac, ivHmac, Cipher.ENCRYPT_MODE, cipher, iv, ivSeed);
 		byte[] firstEncResult = cipher.doFinal(encBuf);
 
 		byte[] flipBytesResult = flipBytes(firstEncResult);
@@ -523,18 +602,19 @@ public class EncFSCrypto {
 		shuffleBytes(flipBytesResult);
 
 		// Second round of decryption with IV seed itself used for IV generation
-		cipherInit(key, mac, Cipher.ENCRYPT_MODE, cipher, iv, ivSeedPlusOne);
+		cipherInit(key, mac, ivHmac, Cipher.ENCRYPT_MODE, cipher, iv, ivSeedPlusOne);
 		byte[] result = cipher.doFinal(flipBytesResult);
 
 		return result;
 	}
 
 	private static byte[] streamEncode(Cipher cipher, Mac mac, Key key,
-			byte[] iv, byte[] ivSeed, byte[] data)
+			EncFSHmacSha1 ivHmac, byte[] iv, byte[] ivSeed, byte[] data)
 			throws EncFSUnsupportedException,
 			InvalidAlgorithmParameterException, IllegalBlockSizeException,
 			BadPaddingException {
-		return streamEncode(cipher, mac, key, iv, ivSeed, data, 0, data.length);
+		return streamEncode(cipher, mac, key, ivHmac, iv, ivSeed, data, 0,
+				data.length);
 	}
 
 	/**
@@ -563,7 +643,8 @@ public class EncFSCrypto {
 			InvalidAlgorithmParameterException, IllegalBlockSizeException,
 			BadPaddingException {
 		return streamEncode(volume.getStreamCipher(), volume.getMac(),
-				volume.getKey(), volume.getIV(), ivSeed, data);
+				volume.getKey(), volume.getIvHmac(), volume.getIV(), ivSeed,
+				data);
 	}
 
 	/**
@@ -596,7 +677,429 @@ public class EncFSCrypto {
 			InvalidAlgorithmParameterException, IllegalBlockSizeException,
 			BadPaddingException {
 		return streamEncode(volume.getStreamCipher(), volume.getMac(),
-				volume.getKey(), volume.getIV(), ivSeed, data, offset, len);
+				volume.getKey(), volume.getIvHmac(), volume.getIV(), ivSeed,
+				data, offset, len);
+	}
+
+	/**
+	 * Decode the given data using stream mode into a caller supplied buffer
+	 * 
+	 * The output buffer may be the same as the input buffer. No temporary
+	 * arrays are allocated.
+	 * 
+	 * @param volume
+	 *            Volume for the data
+	 * @param ivSeed
+	 *            64-bit IV seed for the decryption
+	 * @param input
+	 *            Buffer containing encrypted data
+	 * @param inputOffset
+	 *            Offset into the input buffer to decode from
+	 * @param len
+	 *            Number of bytes to decode
+	 * @param output
+	 *            Buffer to store decrypted data into
+	 * @param outputOffset
+	 *            Offset into the output buffer to store data at
+	 * 
+	 * @return Number of bytes stored in the output buffer
+	 * 
+	 * @throws InvalidAlgorithmParameterException
+	 *             Invalid algorithm parameters
+	 * @throws IllegalBlockSizeException
+	 *             Illegal block size
+	 * @throws BadPaddingException
+	 *             Pad padding in input
+	 * @throws ShortBufferException
+	 *             Output buffer too small
+	 */
+	public static int streamDecode(EncFSVolume volume, long ivSeed,
+			byte[] input, int inputOffset, int len, byte[] output,
+			int outputOffset) throws InvalidAlgorithmParameterException,
+			IllegalBlockSizeException, BadPaddingException,
+			ShortBufferException {
+		Cipher cipher = volume.getStreamCipher();
+		Mac mac = volume.getMac();
+
+		// First round uses IV seed + 1 for IV generation
+		cipherInit(volume.getKey(), mac, volume.getIvHmac(),
+				Cipher.DECRYPT_MODE, cipher, volume.getIV(), ivSeed + 1);
+		cipher.doFinal(input, inputOffset, len, output, outputOffset);
+
+		unshuffleBytes(output, outputOffset, len);
+		flipBytes(output, outputOffset, len);
+
+		// Second round of decryption with IV seed itself used for IV generation
+		cipherInit(volume.getKey(), mac, volume.getIvHmac(),
+				Cipher.DECRYPT_MODE, cipher, volume.getIV(), ivSeed);
+		cipher.doFinal(output, outputOffset, len, output, outputOffset);
+
+		unshuffleBytes(output, outputOffset, len);
+
+		return len;
+	}
+
+	/**
+	 * Encode the given data using stream mode into a caller supplied buffer
+	 * 
+	 * The output buffer may be the same as the input buffer. No temporary
+	 * arrays are allocated.
+	 * 
+	 * @param volume
+	 *            Volume for the data
+	 * @param ivSeed
+	 *            64-bit IV seed for the encryption
+	 * @param input
+	 *            Buffer containing plaintext data
+	 * @param inputOffset
+	 *            Offset into the input buffer to encode from
+	 * @param len
+	 *            Number of bytes to encode
+	 * @param output
+	 *            Buffer to store encrypted data into
+	 * @param outputOffset
+	 *            Offset into the output buffer to store data at
+	 * 
+	 * @return Number of bytes stored in the output buffer
+	 * 
+	 * @throws InvalidAlgorithmParameterException
+	 *             Invalid algorithm parameters
+	 * @throws IllegalBlockSizeException
+	 *             Illegal block size
+	 * @throws BadPaddingException
+	 *             Pad padding in input
+	 * @throws ShortBufferException
+	 *             Output buffer too small
+	 */
+	public static int streamEncode(EncFSVolume volume, long ivSeed,
+			byte[] input, int inputOffset, int len, byte[] output,
+			int outputOffset) throws InvalidAlgorithmParameterException,
+			IllegalBlockSizeException, BadPaddingException,
+			ShortBufferException {
+		Cipher cipher = volume.getStreamCipher();
+		Mac mac = volume.getMac();
+
+		System.arraycopy(input, inputOffset, output, outputOffset, len);
+		shuffleBytes(output, outputOffset, len);
+
+		// First round uses IV seed itself for IV generation
+		cipherInit(volume.getKey(), mac, volume.getIvHmac(),
+				Cipher.ENCRYPT_MODE, cipher, volume.getIV(), ivSeed);
+		cipher.doFinal(output, outputOffset, len, output, outputOffset);
+
+		flipBytes(output, outputOffset, len);
+		shuffleBytes(output, outputOffset, len);
+
+		// Second round uses IV seed + 1 for IV generation
+		cipherInit(volume.getKey(), mac, volume.getIvHmac(),
+				Cipher.ENCRYPT_MODE, cipher, volume.getIV(), ivSeed + 1);
+		cipher.doFinal(output, outputOffset, len, output, outputOffset);
+
+		return len;
+	}
+
+	/**
+	 * Decode the remaining bytes of the input buffer using stream mode
+	 * 
+	 * Works on both heap and direct buffers without copying the data into
+	 * intermediate arrays. As with Cipher.doFinal(ByteBuffer, ByteBuffer), the
+	 * input position is advanced to its limit and the output position is
+	 * advanced by the number of bytes stored. The buffers may share the same
+	 * backing memory.
+	 * 
+	 * @param volume
+	 *            Volume for the data
+	 * @param ivSeed
+	 *            64-bit IV seed for the decryption
+	 * @param input
+	 *            Buffer containing encrypted data
+	 * @param output
+	 *            Buffer to store decrypted data into
+	 * 
+	 * @return Number of bytes stored in the output buffer
+	 * 
+	 * @throws InvalidAlgorithmParameterException
+	 *             Invalid algorithm parameters
+	 * @throws IllegalBlockSizeException
+	 *             Illegal block size
+	 * @throws BadPaddingException
+	 *             Pad padding in input
+	 * @throws ShortBufferException
+	 *             Output buffer too small
+	 */
+	public static int streamDecode(EncFSVolume volume, long ivSeed,
+			ByteBuffer input, ByteBuffer output)
+			throws InvalidAlgorithmParameterException,
+			IllegalBlockSizeException, BadPaddingException,
+			ShortBufferException {
+		Cipher cipher = volume.getStreamCipher();
+		Mac mac = volume.getMac();
+		int outputOffset = output.position();
+		int len = input.remaining();
+
+		// First round uses IV seed + 1 for IV generation
+		cipherInit(volume.getKey(), mac, volume.getIvHmac(),
+				Cipher.DECRYPT_MODE, cipher, volume.getIV(), ivSeed + 1);
+		cipher.doFinal(input, output);
+
+		unshuffleBytes(output, outputOffset, len);
+		flipBytes(output, outputOffset, len);
+
+		// Second round of decryption with IV seed itself used for IV generation
+		cipherInit(volume.getKey(), mac, volume.getIvHmac(),
+				Cipher.DECRYPT_MODE, cipher, volume.getIV(), ivSeed);
+		cipherInPlace(cipher, output, outputOffset, len);
+
+		unshuffleBytes(output, outputOffset, len);
+
+		return len;
+	}
+
+	/**
+	 * Encode the remaining bytes of the input buffer using stream mode
+	 * 
+	 * Works on both heap and direct buffers without copying the data into
+	 * intermediate arrays. As with Cipher.doFinal(ByteBuffer, ByteBuffer), the
+	 * input position is advanced to its limit and the output position is
+	 * advanced by the number of bytes stored. The buffers may share the same
+	 * backing memory.
+	 * 
+	 * @param volume
+	 *            Volume for the data
+	 * @param ivSeed
+	 *            64-bit IV seed for the encryption
+	 * @param input
+	 *            Buffer containing plaintext data
+	 * @param output
+	 *            Buffer to store encrypted data into
+	 * 
+	 * @return Number of bytes stored in the output buffer
+	 * 
+	 * @throws InvalidAlgorithmParameterException
+	 *             Invalid algorithm parameters
+	 * @throws IllegalBlockSizeException
+	 *             Illegal block size
+	 * @throws BadPaddingException
+	 *             Pad padding in input
+	 * @throws ShortBufferException
+	 *             Output buffer too small
+	 */
+	public static int streamEncode(EncFSVolume volume, long ivSeed,
+			ByteBuffer input, ByteBuffer output)
+			throws InvalidAlgorithmParameterException,
+			IllegalBlockSizeException, BadPaddingException,
+			ShortBufferException {
+		Cipher cipher = volume.getStreamCipher();
+		Mac mac = volume.getMac();
+		int outputOffset = output.position();
+		int len = input.remaining();
+		if (output.remaining() < len) {
+			throw new ShortBufferException("Output buffer too small");
+		}
+
+		output.put(input);
+		shuffleBytes(output, outputOffset, len);
+
+		// First round uses IV seed itself for IV generation
+		cipherInit(volume.getKey(), mac, volume.getIvHmac(),
+				Cipher.ENCRYPT_MODE, cipher, volume.getIV(), ivSeed);
+		cipherInPlace(cipher, output, outputOffset, len);
+
+		flipBytes(output, outputOffset, len);
+		shuffleBytes(output, outputOffset, len);
+
+		// Second round uses IV seed + 1 for IV generation
+		cipherInit(volume.getKey(), mac, volume.getIvHmac(),
+				Cipher.ENCRYPT_MODE, cipher, volume.getIV(), ivSeed + 1);
+		cipherInPlace(cipher, output, outputOffset, len);
+
+		return len;
+	}
+
+	// Run the cipher over the given buffer region in place
+	private static void cipherInPlace(Cipher cipher, ByteBuffer buf,
+			int offset, int len) throws IllegalBlockSizeException,
+			BadPaddingException, ShortBufferException {
+		ByteBuffer in = buf.duplicate();
+		in.limit(offset + len);
+		in.position(offset);
+		ByteBuffer out = buf.duplicate();
+		out.limit(offset + len);
+		out.position(offset);
+		cipher.doFinal(in, out);
+	}
+
+	// Perform a block operation into a caller supplied buffer
+	private static int blockOperation(EncFSVolume volume, long ivSeed,
+			byte[] input, int inputOffset, int len, byte[] output,
+			int outputOffset, int opMode)
+			throws InvalidAlgorithmParameterException,
+			IllegalBlockSizeException, BadPaddingException,
+			ShortBufferException {
+		Cipher cipher = volume.getBlockCipher();
+		cipherInit(volume.getKey(), volume.getMac(), volume.getIvHmac(),
+				opMode, cipher, volume.getIV(), ivSeed);
+		return cipher.doFinal(input, inputOffset, len, output, outputOffset);
+	}
+
+	/**
+	 * Decode the given data using block mode into a caller supplied buffer
+	 * 
+	 * @param volume
+	 *            Volume for the data
+	 * @param ivSeed
+	 *            64-bit IV seed for the decryption
+	 * @param input
+	 *            Buffer containing encrypted data
+	 * @param inputOffset
+	 *            Offset into the input buffer to decode from
+	 * @param len
+	 *            Number of bytes to decode
+	 * @param output
+	 *            Buffer to store decrypted data into
+	 * @param outputOffset
+	 *            Offset into the output buffer to store data at
+	 * 
+	 * @return Number of bytes stored in the output buffer
+	 * 
+	 * @throws InvalidAlgorithmParameterException
+	 *             Invalid algorithm parameters
+	 * @throws IllegalBlockSizeException
+	 *             Illegal block size
+	 * @throws BadPaddingException
+	 *             Pad padding in input
+	 * @throws ShortBufferException
+	 *             Output buffer too small
+	 */
+	public static int blockDecode(EncFSVolume volume, long ivSeed,
+			byte[] input, int inputOffset, int len, byte[] output,
+			int outputOffset) throws InvalidAlgorithmParameterException,
+			IllegalBlockSizeException, BadPaddingException,
+			ShortBufferException {
+		return blockOperation(volume, ivSeed, input, inputOffset, len, output,
+				outputOffset, Cipher.DECRYPT_MODE);
+	}
+
+	/**
+	 * Encode the given data using block mode into a caller supplied buffer
+	 * 
+	 * @param volume
+	 *            Volume for the data
+	 * @param ivSeed
+	 *            64-bit IV seed for the encryption
+	 * @param input
+	 *            Buffer containing plaintext data
+	 * @param inputOffset
+	 *            Offset into the input buffer to encode from
+	 * @param len
+	 *            Number of bytes to encode
+	 * @param output
+	 *            Buffer to store encrypted data into
+	 * @param outputOffset
+	 *            Offset into the output buffer to store data at
+	 * 
+	 * @return Number of bytes stored in the output buffer
+	 * 
+	 * @throws InvalidAlgorithmParameterException
+	 *             Invalid algorithm parameters
+	 * @throws IllegalBlockSizeException
+	 *             Illegal block size
+	 * @throws BadPaddingException
+	 *             Pad padding in input
+	 * @throws ShortBufferException
+	 *             Output buffer too small
+	 */
+	public static int blockEncode(EncFSVolume volume, long ivSeed,
+			byte[] input, int inputOffset, int len, byte[] output,
+			int outputOffset) throws InvalidAlgorithmParameterException,
+			IllegalBlockSizeException, BadPaddingException,
+			ShortBufferException {
+		return blockOperation(volume, ivSeed, input, inputOffset, len, output,
+				outputOffset, Cipher.ENCRYPT_MODE);
+	}
+
+	// Perform a block operation on the remaining bytes of the input buffer
+	private static int blockOperation(EncFSVolume volume, long ivSeed,
+			ByteBuffer input, ByteBuffer output, int opMode)
+			throws InvalidAlgorithmParameterException,
+			IllegalBlockSizeException, BadPaddingException,
+			ShortBufferException {
+		Cipher cipher = volume.getBlockCipher();
+		cipherInit(volume.getKey(), volume.getMac(), volume.getIvHmac(),
+				opMode, cipher, volume.getIV(), ivSeed);
+		return cipher.doFinal(input, output);
+	}
+
+	/**
+	 * Decode the remaining bytes of the input buffer using block mode
+	 * 
+	 * Works on both heap and direct buffers. As with Cipher.doFinal(ByteBuffer,
+	 * ByteBuffer), the input position is advanced to its limit and the output
+	 * position is advanced by the number of bytes stored.
+	 * 
+	 * @param volume
+	 *            Volume for the data
+	 * @param ivSeed
+	 *            64-bit IV seed for the decryption
+	 * @param input
+	 *            Buffer containing encrypted data
+	 * @param output
+	 *            Buffer to store decrypted data into
+	 * 
+	 * @return Number of bytes stored in the output buffer
+	 * 
+	 * @throws InvalidAlgorithmParameterException
+	 *             Invalid algorithm parameters
+	 * @throws IllegalBlockSizeException
+	 *             Illegal block size
+	 * @throws BadPaddingException
+	 *             Pad padding in input
+	 * @throws ShortBufferException
+	 *             Output buffer too small
+	 */
+	public static int blockDecode(EncFSVolume volume, long ivSeed,
+			ByteBuffer input, ByteBuffer output)
+			throws InvalidAlgorithmParameterException,
+			IllegalBlockSizeException, BadPaddingException,
+			ShortBufferException {
+		return blockOperation(volume, ivSeed, input, output,
+				Cipher.DECRYPT_MODE);
+	}
+
+	/**
+	 * Encode the remaining bytes of the input buffer using block mode
+	 * 
+	 * Works on both heap and direct buffers. As with Cipher.doFinal(ByteBuffer,
+	 * ByteBuffer), the input position is advanced to its limit and the output
+	 * position is advanced by the number of bytes stored.
+	 * 
+	 * @param volume
+	 *            Volume for the data
+	 * @param ivSeed
+	 *            64-bit IV seed for the encryption
+	 * @param input
+	 *            Buffer containing plaintext data
+	 * @param output
+	 *            Buffer to store encrypted data into
+	 * 
+	 * @return Number of bytes stored in the output buffer
+	 * 
+	 * @throws InvalidAlgorithmParameterException
+	 *             Invalid algorithm parameters
+	 * @throws IllegalBlockSizeException
+	 *             Illegal block size
+	 * @throws BadPaddingException
+	 *             Pad padding in input
+	 * @throws ShortBufferException
+	 *             Output buffer too small
+	 */
+	public static int blockEncode(EncFSVolume volume, long ivSeed,
+			ByteBuffer input, ByteBuffer output)
+			throws InvalidAlgorithmParameterException,
+			IllegalBlockSizeException, BadPaddingException,
+			ShortBufferException {
+		return blockOperation(volume, ivSeed, input, output,
+				Cipher.ENCRYPT_MODE);
 	}
 
 	private static byte[] blockOperation(EncFSVolume volume, byte[] ivSeed,
@@ -663,47 +1166,88 @@ public class EncFSCrypto {
 		return blockOperation(volume, ivSeed, data, Cipher.ENCRYPT_MODE);
 	}
 
-	// Compute chain IV for the given volume path
+	/*
+	 * Compute chain IV for the given volume path. Each path component updates
+	 * the IV of its parent directory, so when a name cache is available the IV
+	 * of the longest cached prefix of the path is used as the starting point
+	 * and the IVs of the remaining prefixes are cached along the way.
+	 */
 	private static byte[] computeChainIv(EncFSVolume volume, String volumePath) {
-		byte[] chainIv = new byte[8];
+		List<String> pathParts = new ArrayList<String>();
 		StringTokenizer st = new StringTokenizer(volumePath,
 				EncFSVolume.PATH_SEPARATOR);
 		while (st.hasMoreTokens()) {
 			String curPath = st.nextToken();
-			if ((curPath.length() > 0)
-					&& (curPath != EncFSVolume.PATH_SEPARATOR)) {
-				
-				byte[] encodeBytes;
-
-				if (volume.getConfig().getNameAlgorithm() == 
-						EncFSConfig.ENCFS_CONFIG_NAME_ALG_BLOCK) {					
-					// Only pad for block mode
-					int padLen = 16 - (curPath.length() % 16);
-					if (padLen == 0) {
-						padLen = 16;
-					}
-					encodeBytes = new byte[curPath.length() + padLen];
-	
-					for (int i = 0; i < curPath.length(); i++) {
-						encodeBytes[i] = curPath.getBytes()[i];
-					}
-	
-					// Pad to the nearest 16 bytes, add a full block if needed
-					for (int i = 0; i < padLen; i++) {
-						encodeBytes[curPath.length() + i] = (byte) padLen;
-					}
-				} else {
-					encodeBytes = curPath.getBytes(); 
+			if (curPath.length() > 0) {
+				pathParts.add(curPath);
+			}
+		}
+
+		// Canonical path of each prefix, prefixes[i] covers i components
+		String[] prefixes = new String[pathParts.size() + 1];
+		prefixes[0] = EncFSVolume.ROOT_PATH;
+		for (int i = 0; i < pathParts.size(); i++) {
+			prefixes[i + 1] = EncFSVolume.combinePath(prefixes[i],
+					pathParts.get(i));
+		}
+
+		EncFSNameCache nameCache = volume.getNameCache();
+		byte[] chainIv = null;
+		int start = pathParts.size();
+		if (nameCache != null) {
+			while (start > 0) {
+				chainIv = nameCache.getChainIv(prefixes[start]);
+				if (chainIv != null) {
+					break;
 				}
+				start--;
+			}
+		}
+		if (chainIv == null) {
+			chainIv = new byte[8];
+			start = 0;
+		}
 
-				// Update chain IV
-				EncFSCrypto.mac64(volume.getMac(), encodeBytes, chainIv);
+		for (int i = start; i < pathParts.size(); i++) {
+			updateChainIv(volume, pathParts.get(i), chainIv);
+			if (nameCache != null) {
+				nameCache.putChainIv(prefixes[i + 1], chainIv);
 			}
 		}
 
 		return chainIv;
 	}
 
+	// Update the given chain IV with the given path component
+	private static void updateChainIv(EncFSVolume volume, String curPath,
+			byte[] chainIv) {
+		byte[] encodeBytes;
+
+		if (volume.getConfig().getNameAlgorithm() == 
+				EncFSConfig.ENCFS_CONFIG_NAME_ALG_BLOCK) {					
+			// Only pad for block mode
+			int padLen = 16 - (curPath.length() % 16);
+			if (padLen == 0) {
+				padLen = 16;
+			}
+			encodeBytes = new byte[curPath.length() + padLen];
+
+			for (int i = 0; i < curPath.length(); i++) {
+				encodeBytes[i] = curPath.getBytes()[i];
+			}
+
+			// Pad to the nearest 16 bytes, add a full block if needed
+			for (int i = 0; i < padLen; i++) {
+				encodeBytes[curPath.length() + i] = (byte) padLen;
+			}
+		} else {
+			encodeBytes = curPath.getBytes(); 
+		}
+
+		// Update chain IV
+		EncFSCrypto.mac64(volume.getMac(), encodeBytes, chainIv);
+	}
+
 	/**
 	 * Decode the given fileName under the given volume and volume path
 	 * 
@@ -724,7 +1268,25 @@ public class EncFSCrypto {
 	public static String decodeName(EncFSVolume volume, String fileName,
 			String volumePath) throws EncFSCorruptDataException,
 			EncFSChecksumException {
-		byte[] base256FileName = EncFSBase64.decodeEncfs(fileName.getBytes());
+		EncFSNameCache nameCache = volume.getNameCache();
+		if (nameCache == null) {
+			return decodeNameUncached(volume, fileName, volumePath);
+		}
+
+		String decodedName = nameCache.getDecodedName(volumePath, fileName);
+		if (decodedName == null) {
+			decodedName = decodeNameUncached(volume, fileName, volumePath);
+			nameCache.put(volumePath, decodedName, fileName);
+		}
+
+		return decodedName;
+	}
+
+	// Decode the given fileName without consulting the volume name cache
+	private static String decodeNameUncached(EncFSVolume volume,
+			String fileName, String volumePath)
+			throws EncFSCorruptDataException, EncFSChecksumException {
+		byte[] base256FileName = EncFSNameBase64.decode(fileName);
 
 		byte[] encFileName = Arrays.copyOfRange(base256FileName, 2,
 				base256FileName.length);
@@ -811,6 +1373,24 @@ public class EncFSCrypto {
 	 */
 	public static String encodeName(EncFSVolume volume, String fileName,
 			String volumePath) throws EncFSCorruptDataException {
+		EncFSNameCache nameCache = volume.getNameCache();
+		if (nameCache == null) {
+			return encodeNameUncached(volume, fileName, volumePath);
+		}
+
+		String encodedName = nameCache.getEncodedName(volumePath, fileName);
+		if (encodedName == null) {
+			encodedName = encodeNameUncached(volume, fileName, volumePath);
+			nameCache.put(volumePath, fileName, encodedName);
+		}
+
+		return encodedName;
+	}
+
+	// Encode the given fileName without consulting the volume name cache
+	private static String encodeNameUncached(EncFSVolume volume,
+			String fileName, String volumePath)
+			throws EncFSCorruptDataException {
 		byte[] decFileName = fileName.getBytes();
 
 		byte[] paddedDecFileName;
@@ -885,9 +1465,8 @@ public class EncFSCrypto {
 		base256FileName[1] = mac16[1];
 		System.arraycopy(encFileName, 0, base256FileName, 2, encFileName.length);
 
-		byte[] fileNameOutput = EncFSBase64.encodeEncfs(base256FileName);
-
-		return new String(fileNameOutput);
+		return EncFSNameBase64.encode(base256FileName, 0,
+				base256FileName.length);
 	}
 
 	/**
@@ -983,6 +1562,99 @@ public class EncFSCrypto {
 		return mac64;
 	}
 
+	/**
+	 * Compute 64-bit MAC over the given input bytes without allocating
+	 * 
+	 * Byte i of the MAC array returned by the other mac64 methods corresponds
+	 * to bits (7 - i) * 8 through (7 - i) * 8 + 7 of the result.
+	 * 
+	 * @param mac
+	 *            MAC object to use
+	 * @param input
+	 *            Input bytes
+	 * @param inputOffset
+	 *            Offset into 'input' to start computing MAC from
+	 * @param inputLen
+	 *            Number of bytes to compute MAC for
+	 * 
+	 * @return Computed 64-bit MAC result
+	 */
+	protected static long mac64AsLong(Mac mac, byte[] input, int inputOffset,
+			int inputLen) {
+		byte[] macResult = scratch.get();
+		mac.reset();
+		mac.update(input, inputOffset, inputLen);
+		try {
+			mac.doFinal(macResult, SCRATCH_MAC_OFFSET);
+		} catch (ShortBufferException e) {
+			throw new IllegalStateException(e);
+		}
+
+		return foldMac64(macResult);
+	}
+
+	/**
+	 * Compute 64-bit MAC over the remaining bytes of the given buffer
+	 * 
+	 * Works on both heap and direct buffers, the buffer position is advanced
+	 * to its limit.
+	 * 
+	 * @param mac
+	 *            MAC object to use
+	 * @param input
+	 *            Input bytes
+	 * 
+	 * @return Computed 64-bit MAC result
+	 */
+	protected static byte[] mac64(Mac mac, ByteBuffer input) {
+		long result = mac64AsLong(mac, input);
+		byte[] mac64 = new byte[8];
+		for (int i = 0; i < 8; i++) {
+			mac64[i] = (byte) (result >>> (8 * (7 - i)));
+		}
+		return mac64;
+	}
+
+	/**
+	 * Compute 64-bit MAC over the remaining bytes of the given buffer without
+	 * allocating
+	 * 
+	 * Works on both heap and direct buffers, the buffer position is advanced
+	 * to its limit. See mac64AsLong(Mac, byte[], int, int) for the layout of
+	 * the result.
+	 * 
+	 * @param mac
+	 *            MAC object to use
+	 * @param input
+	 *            Input bytes
+	 * 
+	 * @return Computed 64-bit MAC result
+	 */
+	protected static long mac64AsLong(Mac mac, ByteBuffer input) {
+		byte[] macResult = scratch.get();
+		mac.reset();
+		mac.update(input);
+		try {
+			mac.doFinal(macResult, SCRATCH_MAC_OFFSET);
+		} catch (ShortBufferException e) {
+			throw new IllegalStateException(e);
+		}
+
+		return foldMac64(macResult);
+	}
+
+	// Fold the MAC output in the scratch buffer into a 64-bit value
+	private static long foldMac64(byte[] macResult) {
+		long result = 0;
+		for (int i = 0; i < 19; i++) {
+			// Note the 19 not 20
+			long macByte = macResult[SCRATCH_MAC_OFFSET + i] & 0xff;
+			result ^= macByte << (8 * (7 - (i % 8)));
+		}
+
+		return result;
+	}
+
 	// Compute 64-bit MAC
 	private static byte[] mac64(Mac mac, byte[] input) {
 
@@ -1064,6 +1736,68 @@ public class EncFSCrypto {
 		return mac16;
 	}
 
+	// Apply the "unshuffle" transformation to the given buffer region
+	private static void unshuffleBytes(byte[] buf, int offset, int len) {
+		for (int i = offset + len - 1; i > offset; i--)
+			buf[i] ^= buf[i - 1];
+	}
+
+	// Apply the "shuffle" transformation to the given buffer region
+	private static void shuffleBytes(byte[] buf, int offset, int len) {
+		for (int i = offset; i < offset + len - 1; ++i)
+			buf[i + 1] ^= buf[i];
+	}
+
+	// Apply the "flip bytes" transformation to the given buffer region in place
+	private static void flipBytes(byte[] buf, int offset, int len) {
+		int bytesLeft = len;
+		int chunkOffset = offset;
+
+		while (bytesLeft > 0) {
+			int toFlip = Math.min(64, bytesLeft);
+
+			for (int i = 0; i < toFlip / 2; i++) {
+				byte tmp = buf[chunkOffset + i];
+				buf[chunkOffset + i] = buf[chunkOffset + toFlip - i - 1];
+				buf[chunkOffset + toFlip - i - 1] = tmp;
+			}
+
+			bytesLeft -= toFlip;
+			chunkOffset += toFlip;
+		}
+	}
+
+	// Apply the "unshuffle" transformation to the given buffer region
+	private static void unshuffleBytes(ByteBuffer buf, int offset, int len) {
+		for (int i = offset + len - 1; i > offset; i--)
+			buf.put(i, (byte) (buf.get(i) ^ buf.get(i - 1)));
+	}
+
+	// Apply the "shuffle" transformation to the given buffer region
+	private static void shuffleBytes(ByteBuffer buf, int offset, int len) {
+		for (int i = offset; i < offset + len - 1; ++i)
+			buf.put(i + 1, (byte) (buf.get(i + 1) ^ buf.get(i)));
+	}
+
+	// Apply the "flip bytes" transformation to the given buffer region in place
+	private static void flipBytes(ByteBuffer buf, int offset, int len) {
+		int bytesLeft = len;
+		int chunkOffset = offset;
+
+		while (bytesLeft > 0) {
+			int toFlip = Math.min(64, bytesLeft);
+
+			for (int i = 0; i < toFlip / 2; i++) {
+				byte tmp = buf.get(chunkOffset + i);
+				buf.put(chunkOffset + i, buf.get(chunkOffset + toFlip - i - 1));
+				buf.put(chunkOffset + toFlip - i - 1, tmp);
+			}
+
+			bytesLeft -= toFlip;
+			chunkOffset += toFlip;
+		}
+	}
+
 	// Apply the "unshuffle" transformation to the given input
 	private static void unshuffleBytes(byte[] input) {
 		for (int i = (input.length - 1); i > 0; i--)
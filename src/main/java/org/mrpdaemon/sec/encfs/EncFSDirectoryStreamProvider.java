@@ -0,0 +1,44 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+
+/**
+ * Optional interface for file providers that can list directories lazily
+ * 
+ * Providers implementing this interface let EncFSFile.openDirectoryStream()
+ * decode entries as the caller consumes them, instead of materializing the
+ * whole directory listing through EncFSFileProvider.listFiles() first.
+ */
+public interface EncFSDirectoryStreamProvider extends EncFSFileProvider {
+
+	/**
+	 * Opens a stream over the files under the given directory path
+	 * 
+	 * @param dirPath
+	 *            Path of the directory to list files from
+	 * 
+	 * @return DirectoryStream of EncFSFileInfo representing files under the
+	 *         dir, must be closed by the caller
+	 * 
+	 * @throws IOException
+	 *             Path not a directory or misc. I/O error
+	 */
+	public DirectoryStream<EncFSFileInfo> newDirectoryStream(String dirPath)
+			throws IOException;
+}
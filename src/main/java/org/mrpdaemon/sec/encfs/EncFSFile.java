@@ -15,11 +15,20 @@
 
 package org.mrpdaemon.sec.encfs;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NotDirectoryException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Object representing a file in an EncFS volume.
@@ -226,41 +235,199 @@ public class EncFSFile {
 			return null;
 		}
 
-		String encDirName;
-		if (this == volume.getRootDir()) {
-			encDirName = EncFSVolume.ROOT_PATH;
-		} else {
-			encDirName = getEncryptedPath();
-		}
 		String dirName = getPath();
-
-		List<EncFSFileInfo> fileInfos = volume.getFileProvider().listFiles(
-				encDirName);
+		List<EncFSFileInfo> fileInfos = listEncryptedFileInfos();
 		List<EncFSFile> result = new ArrayList<EncFSFile>(fileInfos.size());
 
 		for (EncFSFileInfo fileInfo : fileInfos) {
-			String decodedFileName;
-			try {
-				decodedFileName = EncFSCrypto.decodeName(volume,
-						fileInfo.getName(), dirName);
-			} catch (EncFSCorruptDataException e) {
-				decodedFileName = null;
-			} catch (EncFSChecksumException e) {
-				decodedFileName = null;
+			EncFSFile file = decodeFileInfo(fileInfo, dirName);
+			if (file != null) {
+				result.add(file);
 			}
+		}
+
+		return result.toArray(new EncFSFile[result.size()]);
+	}
 
-			if (decodedFileName != null) {
-				EncFSFileInfo decEncFileInfo = EncFSFileInfo
-						.getDecodedFileInfo(volume, dirName, decodedFileName,
-								fileInfo);
+	/**
+	 * Get list of EncFSFile's under this directory, decoding file names in
+	 * parallel on the given pool
+	 * 
+	 * The result is in the same order as returned by the file provider, and
+	 * names that fail to decode are skipped just like with listFiles().
+	 * 
+	 * @param pool
+	 *            Fork/join pool to decode file names on
+	 * 
+	 * @return list of EncFSFile under the given directory
+	 * 
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public EncFSFile[] listFiles(ForkJoinPool pool) throws IOException {
+
+		if (this.isDirectory() == false) {
+			return null;
+		}
 
-				result.add(new EncFSFile(volume, decEncFileInfo, fileInfo));
+		List<EncFSFileInfo> fileInfos = listEncryptedFileInfos();
+		if (!(fileInfos instanceof RandomAccess)) {
+			// Tasks index into the list
+			fileInfos = new ArrayList<EncFSFileInfo>(fileInfos);
+		}
+		EncFSFile[] decoded = new EncFSFile[fileInfos.size()];
+		pool.invoke(new DecodeTask(fileInfos, getPath(), decoded, 0,
+				decoded.length));
+
+		List<EncFSFile> result = new ArrayList<EncFSFile>(decoded.length);
+		for (EncFSFile file : decoded) {
+			if (file != null) {
+				result.add(file);
 			}
 		}
 
 		return result.toArray(new EncFSFile[result.size()]);
 	}
 
+	/**
+	 * Opens a stream over the EncFSFile's under this directory
+	 * 
+	 * File names are decoded as the caller iterates over the stream, so huge
+	 * directories can be processed with bounded memory. If the volume's file
+	 * provider implements EncFSDirectoryStreamProvider the directory itself is
+	 * also read lazily. Entries whose names fail to decode are skipped.
+	 * 
+	 * @return DirectoryStream of EncFSFile under this directory, must be
+	 *         closed by the caller
+	 * 
+	 * @throws NotDirectoryException
+	 *             This file is not a directory
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public DirectoryStream<EncFSFile> openDirectoryStream() throws IOException {
+		if (this.isDirectory() == false) {
+			throw new NotDirectoryException(getPath());
+		}
+
+		final String dirName = getPath();
+		EncFSFileProvider fileProvider = volume.getFileProvider();
+		Iterable<EncFSFileInfo> source;
+		Closeable closeable;
+		if (volume.providerSupports(EncFSDirectoryStreamProvider.class)) {
+			DirectoryStream<EncFSFileInfo> stream = ((EncFSDirectoryStreamProvider) fileProvider)
+					.newDirectoryStream(getEncryptedDirPath());
+			source = stream;
+			closeable = stream;
+		} else {
+			source = listEncryptedFileInfos();
+			closeable = null;
+		}
+
+		return new EncFSMappedDirectoryStream<EncFSFileInfo, EncFSFile>(
+				source, closeable) {
+			@Override
+			protected EncFSFile map(EncFSFileInfo fileInfo) {
+				return decodeFileInfo(fileInfo, dirName);
+			}
+		};
+	}
+
+	// Returns the encrypted path of this directory for provider calls
+	private String getEncryptedDirPath() {
+		if (this == volume.getRootDir()) {
+			return EncFSVolume.ROOT_PATH;
+		} else {
+			return getEncryptedPath();
+		}
+	}
+
+	/*
+	 * Returns a memory mapping of the encrypted file contents if the file
+	 * provider supports it, null otherwise. Java can't unmap a file explicitly,
+	 * the mapping goes away once the buffer is garbage collected, so this is
+	 * only used for streams and channels that keep the mapping for their
+	 * lifetime, not for one-off positional reads.
+	 */
+	ByteBuffer mapEncryptedFile() throws IOException {
+		EncFSFileProvider fileProvider = volume.getFileProvider();
+		if (volume.providerSupports(EncFSMappedFileProvider.class)) {
+			return ((EncFSMappedFileProvider) fileProvider)
+					.mapFile(getEncryptedPath());
+		}
+		return null;
+	}
+
+	// Returns the provider's listing of the encrypted directory
+	private List<EncFSFileInfo> listEncryptedFileInfos() throws IOException {
+		return volume.getFileProvider().listFiles(getEncryptedDirPath());
+	}
+
+	// Decode the given directory entry, returns null if the name is invalid
+	private EncFSFile decodeFileInfo(EncFSFileInfo fileInfo, String dirName) {
+		String decodedFileName;
+		try {
+			decodedFileName = EncFSCrypto.decodeName(volume,
+					fileInfo.getName(), dirName);
+		} catch (EncFSCorruptDataException e) {
+			decodedFileName = null;
+		} catch (EncFSChecksumException e) {
+			decodedFileName = null;
+		}
+
+		if (decodedFileName == null) {
+			return null;
+		}
+
+		EncFSFileInfo decEncFileInfo = EncFSFileInfo.getDecodedFileInfo(
+				volume, dirName, decodedFileName, fileInfo);
+
+		return new EncFSFile(volume, decEncFileInfo, fileInfo);
+	}
+
+	// Fork/join task decoding a range of directory entries in place
+	private class DecodeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		// Number of entries below which a range is decoded directly
+		private static final int THRESHOLD = 256;
+
+		// Encrypted directory entries
+		private final List<EncFSFileInfo> fileInfos;
+
+		// Plaintext path of the directory
+		private final String dirName;
+
+		// Decoded entries, null for entries that failed to decode
+		private final EncFSFile[] result;
+
+		// Range of entries to decode
+		private final int start, end;
+
+		DecodeTask(List<EncFSFileInfo> fileInfos, String dirName,
+				EncFSFile[] result, int start, int end) {
+			this.fileInfos = fileInfos;
+			this.dirName = dirName;
+			this.result = result;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= THRESHOLD) {
+				for (int i = start; i < end; i++) {
+					result[i] = decodeFileInfo(fileInfos.get(i), dirName);
+				}
+			} else {
+				int mid = (start + end) >>> 1;
+				invokeAll(new DecodeTask(fileInfos, dirName, result, start,
+						mid), new DecodeTask(fileInfos, dirName, result, mid,
+						end));
+			}
+		}
+	}
+
 	/**
 	 * Delete this file
 	 * 
@@ -282,16 +449,193 @@ public class EncFSFile {
 	 * @throws EncFSCorruptDataException
 	 *             Filename encoding failed
 	 * @throws EncFSUnsupportedException
-	 *             File header uses an unsupported IV length
+	 *             File header uses an unsupported IV length, or the volume
+	 *             uses external IV chaining
 	 * @throws IOException
 	 *             File provider returned I/O error
 	 */
 	public InputStream openInputStream() throws EncFSCorruptDataException,
 			EncFSUnsupportedException, IOException {
+		checkContentsSupported();
+		ByteBuffer mapped = mapEncryptedFile();
+		if (mapped != null) {
+			return new EncFSInputStream(volume, mapped, null, 0);
+		}
 		return new EncFSInputStream(volume, volume.getFileProvider()
 				.openInputStream(getEncryptedPath()));
 	}
 
+	/**
+	 * Opens the file as an InputStream that decodes the file contents
+	 * automatically, decrypting blocks in parallel on the given executor
+	 * 
+	 * The stream reads ahead up to readAheadBlocks blocks of the file and
+	 * decrypts them on the executor while the caller consumes earlier blocks.
+	 * Data is still returned in file order.
+	 * 
+	 * @param executor
+	 *            Executor to decrypt blocks on
+	 * @param readAheadBlocks
+	 *            Number of blocks to read ahead
+	 * 
+	 * @return InputStream that decodes file contents
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             Filename encoding failed
+	 * @throws EncFSUnsupportedException
+	 *             File header uses an unsupported IV length, or the volume
+	 *             uses external IV chaining
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public InputStream openInputStream(ExecutorService executor,
+			int readAheadBlocks) throws EncFSCorruptDataException,
+			EncFSUnsupportedException, IOException {
+		checkContentsSupported();
+		ByteBuffer mapped = mapEncryptedFile();
+		if (mapped != null) {
+			return new EncFSInputStream(volume, mapped, executor,
+					readAheadBlocks);
+		}
+		return new EncFSInputStream(volume, volume.getFileProvider()
+				.openInputStream(getEncryptedPath()), executor,
+				readAheadBlocks);
+	}
+
+	/**
+	 * Reads decrypted file contents starting at the given position
+	 * 
+	 * Only the blocks covering the requested range are decrypted. Each call
+	 * reads through its own EncFSFileChannel, so the method can be called
+	 * concurrently from multiple threads on the same file.
+	 * 
+	 * @param position
+	 *            Plaintext position in the file to start reading from
+	 * @param buf
+	 *            Buffer to store the decrypted data into
+	 * @param off
+	 *            Offset into buf to store the data at
+	 * @param len
+	 *            Maximum number of bytes to read
+	 * 
+	 * @return Number of bytes read, -1 if position is at or past the end of
+	 *         the file
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             File data is corrupt
+	 * @throws EncFSUnsupportedException
+	 *             File header uses an unsupported IV length, or the volume
+	 *             uses external IV chaining
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public int read(long position, byte[] buf, int off, int len)
+			throws EncFSCorruptDataException, EncFSUnsupportedException,
+			IOException {
+		if (position < 0) {
+			throw new IllegalArgumentException("Negative position");
+		}
+		if (off < 0 || len < 0 || off + len > buf.length) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		// One-off reads don't map the file, see mapEncryptedFile()
+		EncFSFileChannel channel = new EncFSFileChannel(this, false, false);
+		try {
+			return channel.read(position, ByteBuffer.wrap(buf, off, len));
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Opens the file as a SeekableByteChannel that decodes the file contents
+	 * automatically
+	 * 
+	 * Unlike the stream returned by openInputStream(), the channel can be
+	 * positioned anywhere in the file and only decrypts the blocks that are
+	 * read.
+	 * 
+	 * @return SeekableByteChannel that decodes file contents
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             File header is corrupt
+	 * @throws EncFSUnsupportedException
+	 *             File header uses an unsupported IV length, or the volume
+	 *             uses external IV chaining
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public SeekableByteChannel openChannel() throws EncFSCorruptDataException,
+			EncFSUnsupportedException, IOException {
+		return new EncFSFileChannel(this);
+	}
+
+	/**
+	 * Opens the file as a SeekableByteChannel that decodes and optionally
+	 * encodes the file contents automatically
+	 *
+	 * A writable channel re-encrypts only the blocks touched by each write, so
+	 * a file can be modified in place or appended to (by positioning the
+	 * channel at size()) without rewriting the whole file. Writable channels
+	 * need a file provider implementing EncFSChannelFileProvider.
+	 *
+	 * @param writable
+	 *            Whether the channel should allow writing to the file
+	 *
+	 * @return SeekableByteChannel that decodes and encodes file contents
+	 *
+	 * @throws EncFSCorruptDataException
+	 *             File header is corrupt
+	 * @throws EncFSUnsupportedException
+	 *             File header uses an unsupported IV length, the volume uses
+	 *             external IV chaining, or the file provider doesn't support
+	 *             writable channels
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public SeekableByteChannel openChannel(boolean writable)
+			throws EncFSCorruptDataException, EncFSUnsupportedException,
+			IOException {
+		return new EncFSFileChannel(this, writable);
+	}
+
+	/**
+	 * Truncates or extends the file to the given length
+	 *
+	 * Only the new last block of the file is re-encoded. Extended regions read
+	 * as zeros; if the volume allows holes and has no block MAC headers they
+	 * are left as holes in the underlying file rather than written out as
+	 * encrypted zeros. getLength() keeps reporting the length the file had
+	 * when this object was created, use EncFSVolume.getFile() to get the
+	 * updated file information.
+	 *
+	 * @param length
+	 *            New length of the decrypted file contents
+	 *
+	 * @throws EncFSCorruptDataException
+	 *             File data is corrupt
+	 * @throws EncFSUnsupportedException
+	 *             File header uses an unsupported IV length, the volume uses
+	 *             external IV chaining, or the file provider doesn't support
+	 *             writable channels
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public void setLength(long length) throws EncFSCorruptDataException,
+			EncFSUnsupportedException, IOException {
+		if (isDirectory()) {
+			throw new IOException("Can't set the length of a directory");
+		}
+
+		EncFSFileChannel channel = new EncFSFileChannel(this, true);
+		try {
+			channel.setSize(length);
+		} finally {
+			channel.close();
+		}
+	}
+
 	/**
 	 * Opens the file as an OutputStream that encrypts the file contents
 	 * automatically
@@ -308,18 +652,56 @@ public class EncFSFile {
 	 * @throws EncFSCorruptDataException
 	 *             Filename encoding failed
 	 * @throws EncFSUnsupportedException
-	 *             File header uses an unsupported IV length
+	 *             File header uses an unsupported IV length, or the volume
+	 *             uses external IV chaining
 	 * @throws IOException
 	 *             File provider returned I/O error
 	 */
 	public OutputStream openOutputStream(long inputLength)
 			throws EncFSUnsupportedException, EncFSCorruptDataException,
 			IOException {
+		checkContentsSupported();
 		return new EncFSOutputStream(volume, volume.getFileProvider()
 				.openOutputStream(getEncryptedPath(),
 						volume.getEncryptedFileLength(inputLength)));
 	}
 
+	/**
+	 * Opens the file as an OutputStream that encrypts the file contents
+	 * automatically, encrypting blocks in parallel on the given executor
+	 * 
+	 * Full blocks are handed to the executor for encryption and written to the
+	 * underlying file in order once encrypted.
+	 * 
+	 * @param inputLength
+	 *            Length of the input file that will be written to this output
+	 *            stream
+	 * @param executor
+	 *            Executor to encrypt blocks on
+	 * @param maxPendingBlocks
+	 *            Maximum number of blocks queued for encryption at once
+	 * 
+	 * @return OutputStream that encrypts file contents
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             Filename encoding failed
+	 * @throws EncFSUnsupportedException
+	 *             File header uses an unsupported IV length, or the volume
+	 *             uses external IV chaining
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public OutputStream openOutputStream(long inputLength,
+			ExecutorService executor, int maxPendingBlocks)
+			throws EncFSUnsupportedException, EncFSCorruptDataException,
+			IOException {
+		checkContentsSupported();
+		return new EncFSOutputStream(volume, volume.getFileProvider()
+				.openOutputStream(getEncryptedPath(),
+						volume.getEncryptedFileLength(inputLength)), executor,
+				maxPendingBlocks);
+	}
+
 	/**
 	 * Copies this file/dir to a target file or directory
 	 * 
@@ -329,7 +711,8 @@ public class EncFSFile {
 	 * @return true if copy succeeds, false otherwise
 	 * 
 	 * @throws IOException
-	 *             File provider returned I/O error
+	 *             File provider returned I/O error, or the volume uses external
+	 *             IV chaining
 	 */
 	public boolean copy(EncFSFile dstPath) throws IOException {
 		if (this.isDirectory()) {
@@ -355,28 +738,32 @@ public class EncFSFile {
 
 			return this.copy(realDstPath);
 		} else { // Trying to copy a file into a file
-			if (volume.getConfig().isUniqueIV()) {
-				/*
-				 * More complicated as we need to copy the files by reading them
-				 * in as a stream & writing them out again so that we generate
-				 * unique headers for the file copies
-				 */
-				try {
-					EncFSUtil.copyWholeStream(this.openInputStream(),
-							dstPath.openOutputStream(plainFileInfo.getSize()),
-							true, true);
-				} catch (EncFSCorruptDataException e) {
-					throw new IOException(e);
-				} catch (EncFSUnsupportedException e) {
-					throw new IOException(e);
-				}
-			} else {
-				// Can just do a regular copy, no need to rewrite contents
-				return volume.getFileProvider().copy(getEncryptedPath(),
-						dstPath.getEncryptedPath());
+			try {
+				checkContentsSupported();
+			} catch (EncFSUnsupportedException e) {
+				throw new IOException(e);
 			}
 
-			return true;
+			/*
+			 * File contents don't depend on the path (external IV chaining
+			 * isn't supported), so a raw copy of the ciphertext including any
+			 * unique IV header is valid under the new name. Note that the copy
+			 * shares its file IV with the original.
+			 */
+			return volume.getFileProvider().copy(getEncryptedPath(),
+					dstPath.getEncryptedPath());
+		}
+	}
+
+	/*
+	 * With external IV chaining the file header is encrypted with the IV of
+	 * the file name, which isn't implemented. Such volumes can still be
+	 * browsed, but their file contents can't be accessed.
+	 */
+	void checkContentsSupported() throws EncFSUnsupportedException {
+		if (volume.getConfig().isExternalIVChaining()) {
+			throw new EncFSUnsupportedException(
+					"External IV chaining is not supported");
 		}
 	}
 
@@ -0,0 +1,705 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * SeekableByteChannel implementation that allows random access to decrypted
+ * data of a file on an EncFS volume.
+ * 
+ * Plaintext positions are mapped to the encrypted block holding them, and only
+ * the blocks that are actually read get decrypted. If the file provider can map
+ * the file into memory, blocks are read from the mapping so that seeking
+ * doesn't need to skip through or reopen the underlying file.
+ * 
+ * Channels opened for writing need a file provider implementing
+ * EncFSChannelFileProvider. Writes only read, modify and re-encrypt the blocks
+ * they touch, so existing files can be patched or appended to without
+ * rewriting them. Writing past the end of the file fills the gap with zeros,
+ * and setSize() can shrink or extend the file. If the volume allows holes and
+ * has no block headers, whole blocks of zeros are left as holes in the
+ * underlying file instead of being encrypted and written.
+ */
+public class EncFSFileChannel implements SeekableByteChannel {
+
+	// SecureRandom instance for random data generation
+	private static final SecureRandom secureRandom = new SecureRandom();
+
+	// Volume hosting the file
+	private final EncFSVolume volume;
+
+	// Encrypted volume path of the file
+	private final String encryptedPath;
+
+	// Size of each encrypted block
+	private final int blockSize;
+
+	// Size of the block header for each block
+	private final int blockHeaderSize;
+
+	// Number of data bytes in each block
+	private final int blockDataSize;
+
+	// Size of the file header (0 if uniqueIV is disabled)
+	private final int fileHeaderSize;
+
+	// Length of the decrypted file contents
+	private long size;
+
+	// Whether the channel was opened for writing
+	private final boolean writable;
+
+	// Whether the file header still needs to be written (uniqueIV)
+	private boolean headerPending;
+
+	// File IV computed from the file header
+	private long fileIv;
+
+	// Current plaintext position of the channel
+	private long position;
+
+	// Whether the channel is open
+	private boolean open;
+
+	// Index of the block cached in blockBuf, -1 if none
+	private long blockNum;
+
+	// Encrypted contents of the last block read
+	private byte[] cipherBuf;
+
+	// Decrypted contents of the cached block, including block header
+	private byte[] blockBuf;
+
+	// Number of valid bytes in blockBuf
+	private int blockBufLen;
+
+	// Input stream for reading raw (encrypted) file contents
+	private InputStream in;
+
+	// Memory mapped raw file contents, null if reading through a stream
+	private ByteBuffer mapped;
+
+	// Channel for reading and writing raw file contents, null if read-only
+	private SeekableByteChannel rawChannel;
+
+	// Current position of the raw input stream
+	private long inPosition;
+
+	/**
+	 * Create a new EncFSFileChannel for reading decrypted data from a file on
+	 * an EncFS volume
+	 * 
+	 * @param file
+	 *            File to open the channel for
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             File data is corrupt
+	 * @throws EncFSUnsupportedException
+	 *             Unsupported EncFS configuration
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public EncFSFileChannel(EncFSFile file) throws EncFSCorruptDataException,
+			EncFSUnsupportedException, IOException {
+		this(file, false);
+	}
+
+	/**
+	 * Create a new EncFSFileChannel for accessing decrypted data of a file on
+	 * an EncFS volume
+	 * 
+	 * @param file
+	 *            File to open the channel for
+	 * @param writable
+	 *            Whether the channel should allow writing to the file
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             File data is corrupt
+	 * @throws EncFSUnsupportedException
+	 *             Unsupported EncFS configuration, or writable is set and the
+	 *             file provider doesn't support random access writes
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public EncFSFileChannel(EncFSFile file, boolean writable)
+			throws EncFSCorruptDataException, EncFSUnsupportedException,
+			IOException {
+		this(file, writable, !writable);
+	}
+
+	/*
+	 * Create a new channel, mapping the file into memory for reading if mapFile
+	 * is set and the provider supports it. Read-only channels used for a single
+	 * read skip the mapping.
+	 */
+	EncFSFileChannel(EncFSFile file, boolean writable, boolean mapFile)
+			throws EncFSCorruptDataException, EncFSUnsupportedException,
+			IOException {
+		file.checkContentsSupported();
+		this.volume = file.getVolume();
+		this.encryptedPath = file.getEncryptedPath();
+		this.writable = writable;
+
+		EncFSConfig config = volume.getConfig();
+		this.blockSize = config.getBlockSize();
+		this.blockHeaderSize = config.getBlockMACBytes()
+				+ config.getBlockMACRandBytes();
+		this.blockDataSize = blockSize - blockHeaderSize;
+		this.position = 0;
+		this.blockNum = -1;
+		this.cipherBuf = new byte[blockSize];
+		this.blockBuf = new byte[blockSize];
+		EncFSFileProvider fileProvider = volume.getFileProvider();
+		if (writable) {
+			if (!volume.providerSupports(EncFSChannelFileProvider.class)) {
+				throw new EncFSUnsupportedException(
+						"File provider doesn't support random access writes");
+			}
+			// Reads go through the same channel so they see our writes
+			this.rawChannel = ((EncFSChannelFileProvider) fileProvider)
+					.openReadWriteChannel(encryptedPath);
+		} else if (mapFile) {
+			this.mapped = file.mapEncryptedFile();
+		}
+		this.open = true;
+
+		/*
+		 * Take the size from the backing store rather than the EncFSFile, whose
+		 * file information may predate writes made through it
+		 */
+		if (rawChannel != null) {
+			this.size = volume.getDecryptedFileLength(rawChannel.size());
+		} else {
+			this.size = volume.getDecryptedFileLength(fileProvider
+					.getFileInfo(encryptedPath).getSize());
+		}
+
+		if (config.isUniqueIV()) {
+			this.fileHeaderSize = EncFSFile.HEADER_SIZE;
+			if (size > 0) {
+				// Compute file IV
+				byte[] fileHeader = new byte[fileHeaderSize];
+				seekRaw(0);
+				readRaw(fileHeader, fileHeaderSize);
+				this.fileIv = EncFSUtil.byteArrayToLong(EncFSBlockCodec
+						.getFileIV(volume, fileHeader));
+			} else {
+				// Empty files get a new header on the first write
+				this.headerPending = writable;
+			}
+		} else {
+			// No unique IV per file, just use 0
+			this.fileHeaderSize = 0;
+			this.fileIv = 0;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.SeekableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+
+		int bytesRead;
+		try {
+			bytesRead = read(position, dst);
+		} catch (EncFSCorruptDataException e) {
+			throw new IOException(e);
+		}
+		if (bytesRead > 0) {
+			position += bytesRead;
+		}
+		return bytesRead;
+	}
+
+	/*
+	 * Read decrypted data starting at the given position into dst without
+	 * moving the channel position. Returns the number of bytes read, -1 if the
+	 * position is at or past the end of the file.
+	 */
+	int read(long pos, ByteBuffer dst) throws IOException,
+			EncFSCorruptDataException {
+		ensureOpen();
+
+		if (pos >= size) {
+			return -1;
+		}
+
+		int bytesRead = 0;
+		while (dst.hasRemaining() && pos < size) {
+			long curBlock = pos / blockDataSize;
+			int blockOffset = (int) (pos % blockDataSize);
+
+			loadBlock(curBlock);
+
+			int available = blockBufLen - blockHeaderSize - blockOffset;
+			if (available <= 0) {
+				break;
+			}
+
+			int bytesToCopy = Math.min(available, dst.remaining());
+			dst.put(blockBuf, blockHeaderSize + blockOffset, bytesToCopy);
+
+			pos += bytesToCopy;
+			bytesRead += bytesToCopy;
+		}
+
+		return bytesRead;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.SeekableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	public int write(ByteBuffer src) throws IOException {
+		ensureOpen();
+		ensureWritable();
+
+		try {
+			if (position > size) {
+				// Fill the gap up to the write position with zeros
+				extend(position);
+			}
+
+			int bytesWritten = writeData(position, src);
+			position += bytesWritten;
+			return bytesWritten;
+		} catch (EncFSCorruptDataException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.SeekableByteChannel#position()
+	 */
+	public long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.SeekableByteChannel#position(long)
+	 */
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position");
+		}
+		position = newPosition;
+		return this;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.SeekableByteChannel#size()
+	 */
+	public long size() throws IOException {
+		ensureOpen();
+		return size;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.SeekableByteChannel#truncate(long)
+	 */
+	public SeekableByteChannel truncate(long size) throws IOException {
+		ensureOpen();
+		ensureWritable();
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative size");
+		}
+		if (size < this.size) {
+			setSize(size);
+		}
+		return this;
+	}
+
+	/**
+	 * Change the length of the file
+	 * 
+	 * When shrinking the file only the new last block is re-encoded. When
+	 * extending it the new data reads as zeros, and if the volume allows holes
+	 * and has no block headers, whole blocks are left as holes in the
+	 * underlying file instead of being encrypted and written.
+	 * 
+	 * @param newSize
+	 *            New length of the decrypted file contents
+	 * 
+	 * @throws IOException
+	 *             File provider returned I/O error or file data is corrupt
+	 */
+	public void setSize(long newSize) throws IOException {
+		ensureOpen();
+		ensureWritable();
+		if (newSize < 0) {
+			throw new IllegalArgumentException("Negative size");
+		}
+
+		try {
+			if (newSize < size) {
+				shrink(newSize);
+			} else if (newSize > size) {
+				extend(newSize);
+			}
+		} catch (EncFSCorruptDataException e) {
+			throw new IOException(e);
+		}
+
+		if (position > newSize) {
+			position = newSize;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	public boolean isOpen() {
+		return open;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.Channel#close()
+	 */
+	public void close() throws IOException {
+		if (open) {
+			open = false;
+			cipherBuf = null;
+			blockBuf = null;
+			mapped = null;
+			if (in != null) {
+				in.close();
+				in = null;
+			}
+			if (rawChannel != null) {
+				rawChannel.close();
+				rawChannel = null;
+			}
+		}
+	}
+
+	// Throw ClosedChannelException if the channel has been closed
+	private void ensureOpen() throws ClosedChannelException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	// Throw NonWritableChannelException if the channel is read-only
+	private void ensureWritable() {
+		if (!writable) {
+			throw new NonWritableChannelException();
+		}
+	}
+
+	// Cut the file down to newSize bytes, re-encoding the new last block
+	private void shrink(long newSize) throws IOException,
+			EncFSCorruptDataException {
+		long lastBlock = newSize == 0 ? 0 : (newSize - 1) / blockDataSize;
+		int lastLen = (int) (newSize - lastBlock * blockDataSize);
+		long lastBlockOffset = fileHeaderSize + lastBlock * blockSize;
+
+		long rawSize;
+		if (lastLen == blockDataSize) {
+			// Full blocks stay as they are
+			rawSize = lastBlockOffset + blockSize;
+		} else if (lastLen == 0 && blockHeaderSize == 0) {
+			rawSize = lastBlockOffset;
+		} else {
+			// Partial and empty blocks are encoded differently, redo the last
+			loadBlock(lastBlock);
+			blockBufLen = blockHeaderSize + lastLen;
+			rawSize = lastBlockOffset + storeBlock();
+		}
+
+		rawChannel.truncate(rawSize);
+		if (blockNum != lastBlock) {
+			blockNum = -1;
+		}
+		size = newSize;
+	}
+
+	// Grow the file up to newSize bytes by appending zeros
+	private void extend(long newSize) throws IOException,
+			EncFSCorruptDataException {
+		byte[] zeros = new byte[blockDataSize];
+
+		boolean sparse = volume.getConfig().isHolesAllowed()
+				&& blockHeaderSize == 0;
+		if (sparse) {
+			// Complete the current last block so it's no longer partial
+			long blockEnd = (size + blockDataSize - 1) / blockDataSize
+					* blockDataSize;
+			if (blockEnd > size) {
+				int len = (int) (Math.min(blockEnd, newSize) - size);
+				writeData(size, ByteBuffer.wrap(zeros, 0, len));
+			}
+			if (size == newSize) {
+				return;
+			}
+			if (headerPending) {
+				writeFileHeader();
+			}
+
+			/*
+			 * Zero blocks decode to zeros as-is, so only a final partial block
+			 * needs encoding. A full final block just needs the file to be
+			 * long enough, the rest is left to the file system as holes.
+			 */
+			long lastBlock = (newSize - 1) / blockDataSize;
+			int lastLen = (int) (newSize - lastBlock * blockDataSize);
+			long lastBlockOffset = fileHeaderSize + lastBlock * blockSize;
+			if (lastLen == blockDataSize) {
+				writeRaw(lastBlockOffset + blockSize - 1, zeros, 1);
+				size = newSize;
+			} else {
+				size = lastBlock * blockDataSize;
+				writeData(size, ByteBuffer.wrap(zeros, 0, lastLen));
+			}
+			return;
+		}
+
+		while (size < newSize) {
+			int len = (int) Math.min(zeros.length, newSize - size);
+			writeData(size, ByteBuffer.wrap(zeros, 0, len));
+		}
+	}
+
+	/*
+	 * Write the remaining bytes of src at the given plaintext position, which
+	 * must not be past the end of the file. Each affected block is decoded,
+	 * modified and encoded again with a fresh block header.
+	 */
+	private int writeData(long offset, ByteBuffer src) throws IOException,
+			EncFSCorruptDataException {
+		if (headerPending) {
+			writeFileHeader();
+		}
+
+		int bytesWritten = 0;
+		long curPosition = offset;
+		while (src.hasRemaining()) {
+			long curBlock = curPosition / blockDataSize;
+			int blockOffset = (int) (curPosition % blockDataSize);
+
+			if (curBlock * blockDataSize < size) {
+				// Existing data in the block must be preserved
+				loadBlock(curBlock);
+			} else {
+				// Block starts at the end of the file
+				Arrays.fill(blockBuf, (byte) 0);
+				blockBufLen = blockHeaderSize;
+				blockNum = curBlock;
+			}
+
+			int bytesToCopy = Math.min(blockDataSize - blockOffset,
+					src.remaining());
+			src.get(blockBuf, blockHeaderSize + blockOffset, bytesToCopy);
+			blockBufLen = Math.max(blockBufLen, blockHeaderSize + blockOffset
+					+ bytesToCopy);
+			storeBlock();
+
+			curPosition += bytesToCopy;
+			bytesWritten += bytesToCopy;
+			size = Math.max(size, curPosition);
+		}
+
+		return bytesWritten;
+	}
+
+	/*
+	 * Encode the block cached in blockBuf and write it to the file, returning
+	 * the number of encoded bytes
+	 */
+	private int storeBlock() throws IOException, EncFSCorruptDataException {
+		int numMACBytes = volume.getConfig().getBlockMACBytes();
+		int numRandBytes = blockHeaderSize - numMACBytes;
+		if (numRandBytes > 0) {
+			byte[] randomBytes = new byte[numRandBytes];
+			secureRandom.nextBytes(randomBytes);
+			System.arraycopy(randomBytes, 0, blockBuf, numMACBytes,
+					numRandBytes);
+		}
+
+		long cachedBlock = blockNum;
+		blockNum = -1;
+		int encBytes = EncFSBlockCodec.encodeBlock(volume, fileIv, cachedBlock,
+				blockBuf, blockBufLen, cipherBuf);
+		writeRaw(fileHeaderSize + cachedBlock * blockSize, cipherBuf, encBytes);
+
+		// Encoding only fills in the header, the data is still valid
+		blockNum = cachedBlock;
+		return encBytes;
+	}
+
+	/*
+	 * Write a new random file header. Any leftover blocks of the empty file
+	 * were encoded with the old file IV, so they are dropped.
+	 */
+	private void writeFileHeader() throws IOException,
+			EncFSCorruptDataException {
+		byte[] fileHeader = new byte[fileHeaderSize];
+		secureRandom.nextBytes(fileHeader);
+		try {
+			fileIv = EncFSUtil.byteArrayToLong(EncFSBlockCodec.getFileIV(
+					volume, fileHeader));
+		} catch (EncFSUnsupportedException e) {
+			throw new IOException(e);
+		}
+
+		rawChannel.truncate(0);
+		writeRaw(0, fileHeader, fileHeaderSize);
+		headerPending = false;
+	}
+
+	// Write len bytes of buf at the given encrypted offset
+	private void writeRaw(long offset, byte[] buf, int len) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(buf, 0, len);
+		rawChannel.position(offset);
+		while (data.hasRemaining()) {
+			rawChannel.write(data);
+		}
+		inPosition = rawChannel.position();
+	}
+
+	// Read and decrypt the given block into blockBuf unless already cached
+	private void loadBlock(long newBlockNum) throws IOException,
+			EncFSCorruptDataException {
+		if (newBlockNum == blockNum) {
+			return;
+		}
+
+		// Invalidate the cached block in case decoding fails
+		blockNum = -1;
+
+		if (mapped != null) {
+			// Decrypt straight from the mapping
+			long offset = fileHeaderSize + newBlockNum * blockSize;
+			if (offset >= mapped.limit()) {
+				throw new EOFException("Unexpected end of file at block "
+						+ newBlockNum);
+			}
+			ByteBuffer block = mapped.duplicate();
+			block.position((int) offset);
+			block.limit((int) Math.min(offset + blockSize, mapped.limit()));
+			blockBufLen = EncFSBlockCodec.decodeBlock(volume, fileIv,
+					newBlockNum, block, blockBuf);
+			blockNum = newBlockNum;
+			return;
+		}
+
+		seekRaw(fileHeaderSize + newBlockNum * blockSize);
+		int bytesRead = readRaw(cipherBuf, blockSize);
+		if (bytesRead <= 0) {
+			throw new EOFException("Unexpected end of file at block "
+					+ newBlockNum);
+		}
+
+		blockBufLen = EncFSBlockCodec.decodeBlock(volume, fileIv, newBlockNum,
+				cipherBuf, bytesRead, blockBuf);
+		blockNum = newBlockNum;
+	}
+
+	/*
+	 * Position the raw input stream at the given encrypted offset. Moving
+	 * forward skips over the data without decrypting it, moving backward
+	 * reopens the underlying file. Mapped files are positioned directly, and
+	 * providers that can open a file at an offset are reopened there for any
+	 * move further than a block. Writable channels are positioned directly.
+	 */
+	private void seekRaw(long offset) throws IOException {
+		if (rawChannel != null) {
+			rawChannel.position(offset);
+			inPosition = offset;
+			return;
+		}
+
+		if (mapped != null) {
+			mapped.position((int) Math.min(offset, mapped.limit()));
+			inPosition = offset;
+			return;
+		}
+
+		if (volume.providerSupports(EncFSRangeFileProvider.class)) {
+			if (in == null || offset < inPosition
+					|| offset - inPosition > blockSize) {
+				if (in != null) {
+					in.close();
+				}
+				in = ((EncFSRangeFileProvider) volume.getFileProvider())
+						.openInputStream(encryptedPath, offset, Long.MAX_VALUE);
+				inPosition = offset;
+			}
+		} else if (in == null || offset < inPosition) {
+			if (in != null) {
+				in.close();
+			}
+			in = volume.getFileProvider().openInputStream(encryptedPath);
+			inPosition = 0;
+		}
+
+		if (inPosition < offset) {
+			EncFSBlockCodec.skipFully(in, offset - inPosition);
+			inPosition = offset;
+		}
+	}
+
+	// Read up to len bytes from the raw input stream, returns bytes read
+	private int readRaw(byte[] buf, int len) throws IOException {
+		if (rawChannel != null) {
+			ByteBuffer data = ByteBuffer.wrap(buf, 0, len);
+			while (data.hasRemaining()) {
+				if (rawChannel.read(data) < 0) {
+					break;
+				}
+			}
+			inPosition += data.position();
+			return data.position();
+		}
+
+		if (mapped != null) {
+			int bytesRead = Math.min(len, mapped.remaining());
+			mapped.get(buf, 0, bytesRead);
+			inPosition += bytesRead;
+			return bytesRead;
+		}
+
+		int bytesRead = EncFSBlockCodec.readFully(in, buf, len);
+		inPosition += bytesRead;
+		return bytesRead;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * HMAC-SHA1 with precomputed inner and outer digest states
+ * 
+ * javax.crypto.Mac hashes the padded key again for every MAC it computes, so
+ * each HMAC over a short message costs four SHA-1 compressions. This class
+ * hashes the inner and outer key pads once and clones the resulting digest
+ * states for each MAC, halving the work for short messages such as the IV
+ * seeds used for every block. Objects are immutable after construction and
+ * can be shared between threads.
+ */
+final class EncFSHmacSha1 {
+
+	// Length in bytes of the HMAC output
+	static final int LENGTH = 20;
+
+	// SHA-1 block size in bytes
+	private static final int BLOCK_SIZE = 64;
+
+	// Digest state after hashing the inner key pad
+	private final MessageDigest inner;
+
+	// Digest state after hashing the outer key pad
+	private final MessageDigest outer;
+
+	/**
+	 * Precompute the HMAC state for the given key
+	 * 
+	 * @param key
+	 *            HMAC key bytes
+	 * 
+	 * @throws EncFSUnsupportedException
+	 *             SHA-1 isn't supported or its digests can't be cloned
+	 */
+	EncFSHmacSha1(byte[] key) throws EncFSUnsupportedException {
+		try {
+			this.inner = MessageDigest.getInstance("SHA-1");
+			this.outer = MessageDigest.getInstance("SHA-1");
+			// Make sure digest states can be copied
+			inner.clone();
+		} catch (NoSuchAlgorithmException e) {
+			throw new EncFSUnsupportedException(e);
+		} catch (CloneNotSupportedException e) {
+			throw new EncFSUnsupportedException(e);
+		}
+
+		// Keys longer than a block are hashed first
+		if (key.length > BLOCK_SIZE) {
+			key = inner.digest(key);
+		}
+
+		byte[] pad = new byte[BLOCK_SIZE];
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ 0x36);
+		}
+		inner.update(pad);
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ 0x5c);
+		}
+		outer.update(pad);
+		Arrays.fill(pad, (byte) 0);
+	}
+
+	/**
+	 * Compute the HMAC of the given data
+	 * 
+	 * @param data
+	 *            Buffer containing the input data
+	 * @param off
+	 *            Offset of the input data
+	 * @param len
+	 *            Length of the input data
+	 * @param out
+	 *            Buffer to store LENGTH bytes of output into
+	 * @param outOff
+	 *            Offset into out to store the output at, which must not
+	 *            overlap the input data
+	 */
+	void mac(byte[] data, int off, int len, byte[] out, int outOff) {
+		try {
+			MessageDigest md = (MessageDigest) inner.clone();
+			md.update(data, off, len);
+			md.digest(out, outOff, LENGTH);
+
+			md = (MessageDigest) outer.clone();
+			md.update(out, outOff, LENGTH);
+			md.digest(out, outOff, LENGTH);
+		} catch (CloneNotSupportedException e) {
+			// Checked in the constructor
+			throw new IllegalStateException(e);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -17,14 +17,24 @@ package org.mrpdaemon.sec.encfs;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.InvalidAlgorithmParameterException;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * InputStream extension that allows decrypted data to be read from a file on an
  * EncFS volume.
+ * 
+ * When constructed with an ExecutorService the stream reads ahead a number of
+ * blocks from the underlying stream and decrypts them in parallel on the
+ * executor, handing them back in order.
+ * 
+ * Files mapped into memory by an EncFSMappedFileProvider are read straight
+ * from the mapping instead of through an InputStream.
  */
 public class EncFSInputStream extends InputStream {
 
@@ -49,18 +59,39 @@ public class EncFSInputStream extends InputStream {
 	// Current block number for generating block IV
 	private int blockNum;
 
+	// Buffer containing encrypted data read from the current block
+	private final byte[] cipherBuf;
+
 	// Buffer containing decrypted data from the current block
-	private byte[] blockBuf;
+	private final byte[] blockBuf;
+
+	// Number of valid bytes in blockBuf, -1 if no block has been read yet
+	private int blockBufLen;
 
 	// Cursor into blockBuf denoting current stream position
 	private int bufCursor;
 
 	// File IV computed from the first 8 bytes of the file
-	private byte[] fileIv;
+	private final long fileIv;
 
-	// Input stream to read data from
+	// Input stream to read data from, null when reading from a mapping
 	private final InputStream in;
 
+	// Memory mapped file contents to read data from, null for streams
+	private final ByteBuffer mapped;
+
+	// Executor for decrypting read ahead blocks, null for serial decryption
+	private final ExecutorService executor;
+
+	// Maximum number of blocks to read ahead when using the executor
+	private final int readAheadBlocks;
+
+	// Pending block decryptions in file order
+	private final Deque<Future<byte[]>> pendingBlocks;
+
+	// Whether the end of the underlying stream has been reached
+	private boolean inputEOF;
+
 	/**
 	 * Create a new EncFSInputStream for reading decrypted data off a file on an
 	 * EncFS volume
@@ -79,15 +110,86 @@ public class EncFSInputStream extends InputStream {
 	 */
 	public EncFSInputStream(EncFSVolume volume, InputStream in)
 			throws EncFSCorruptDataException, EncFSUnsupportedException {
+		this(volume, in, null, 0);
+	}
+
+	/**
+	 * Create a new EncFSInputStream for reading decrypted data off a file on an
+	 * EncFS volume, decrypting blocks in parallel on the given executor
+	 * 
+	 * @param volume
+	 *            Volume hosting the file to read
+	 * @param in
+	 *            Input stream to access the raw (encrypted) file contents
+	 * @param executor
+	 *            Executor to decrypt blocks on, null to decrypt blocks on the
+	 *            calling thread
+	 * @param readAheadBlocks
+	 *            Number of blocks to read ahead and decrypt on the executor
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             File data is corrupt
+	 * @throws EncFSUnsupportedException
+	 *             Unsupported EncFS configuration
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public EncFSInputStream(EncFSVolume volume, InputStream in,
+			ExecutorService executor, int readAheadBlocks)
+			throws EncFSCorruptDataException, EncFSUnsupportedException {
+		this(volume, in, null, executor, readAheadBlocks);
+	}
+
+	/**
+	 * Create a new EncFSInputStream reading the raw file contents from a
+	 * memory mapping of the file
+	 * 
+	 * @param volume
+	 *            Volume hosting the file to read
+	 * @param mapped
+	 *            Buffer holding the raw (encrypted) file contents, positioned
+	 *            at the start of the file
+	 * @param executor
+	 *            Executor to decrypt blocks on, null to decrypt blocks on the
+	 *            calling thread
+	 * @param readAheadBlocks
+	 *            Number of blocks to read ahead and decrypt on the executor
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             File data is corrupt
+	 * @throws EncFSUnsupportedException
+	 *             Unsupported EncFS configuration
+	 */
+	EncFSInputStream(EncFSVolume volume, ByteBuffer mapped,
+			ExecutorService executor, int readAheadBlocks)
+			throws EncFSCorruptDataException, EncFSUnsupportedException {
+		this(volume, null, mapped, executor, readAheadBlocks);
+	}
+
+	// Common constructor, exactly one of in and mapped is non-null
+	private EncFSInputStream(EncFSVolume volume, InputStream in,
+			ByteBuffer mapped, ExecutorService executor, int readAheadBlocks)
+			throws EncFSCorruptDataException, EncFSUnsupportedException {
 		super();
+		if (executor != null && readAheadBlocks < 1) {
+			throw new IllegalArgumentException(
+					"Read ahead must be at least one block");
+		}
 		this.in = in;
+		this.mapped = mapped;
+		this.executor = executor;
+		this.readAheadBlocks = readAheadBlocks;
+		this.pendingBlocks = new ArrayDeque<Future<byte[]>>();
+		this.inputEOF = false;
 		this.volume = volume;
 		this.config = volume.getConfig();
 		this.blockSize = config.getBlockSize();
 		this.numMACBytes = config.getBlockMACBytes();
 		this.numRandBytes = config.getBlockMACRandBytes();
 		this.blockHeaderSize = this.numMACBytes + this.numRandBytes;
-		this.blockBuf = null;
+		this.cipherBuf = new byte[blockSize];
+		this.blockBuf = new byte[blockSize];
+		this.blockBufLen = -1;
 		this.bufCursor = 0;
 		this.blockNum = 0;
 
@@ -95,25 +197,19 @@ public class EncFSInputStream extends InputStream {
 			// Compute file IV
 			byte[] fileHeader = new byte[EncFSFile.HEADER_SIZE];
 			try {
-				in.read(fileHeader);
+				if (mapped != null) {
+					readFully(fileHeader);
+				} else {
+					in.read(fileHeader);
+				}
 			} catch (IOException e) {
 				throw new EncFSCorruptDataException("Could't read file IV");
 			}
-			byte[] zeroIv = new byte[8];
-			// TODO: external IV chaining changes zeroIv
-			try {
-				this.fileIv = EncFSCrypto.streamDecode(volume, zeroIv,
-						fileHeader);
-			} catch (InvalidAlgorithmParameterException e) {
-				e.printStackTrace();
-			} catch (IllegalBlockSizeException e) {
-				throw new EncFSCorruptDataException(e);
-			} catch (BadPaddingException e) {
-				throw new EncFSCorruptDataException(e);
-			}
+			this.fileIv = EncFSUtil.byteArrayToLong(EncFSBlockCodec
+					.getFileIV(volume, fileHeader));
 		} else {
 			// No unique IV per file, just use 0
-			this.fileIv = new byte[EncFSFile.HEADER_SIZE];
+			this.fileIv = 0;
 		}
 	}
 
@@ -159,13 +255,11 @@ public class EncFSInputStream extends InputStream {
 		while (bytesRead < len) {
 
 			// Read more data if the data buffer is out
-			if ((blockBuf == null) || (bufCursor == (blockBuf.length))) {
+			if ((blockBufLen < 0) || (bufCursor == blockBufLen)) {
 				try {
 					ret = readBlock();
 				} catch (EncFSCorruptDataException e) {
 					throw new IOException(e);
-				} catch (EncFSUnsupportedException e) {
-					throw new IOException(e);
 				}
 
 				if (ret < 0) {
@@ -177,8 +271,7 @@ public class EncFSInputStream extends InputStream {
 				}
 			}
 
-			bytesToCopy = Math
-					.min(blockBuf.length - bufCursor, len - bytesRead);
+			bytesToCopy = Math.min(blockBufLen - bufCursor, len - bytesRead);
 			System.arraycopy(blockBuf, bufCursor, b, destOffset, bytesToCopy);
 
 			bufCursor += bytesToCopy;
@@ -233,85 +326,170 @@ public class EncFSInputStream extends InputStream {
 
 	@Override
 	public void close() throws IOException {
-		in.close();
+		for (Future<byte[]> pending : pendingBlocks) {
+			pending.cancel(true);
+		}
+		pendingBlocks.clear();
+		if (in != null) {
+			in.close();
+		}
 		super.close();
 	}
 
-	// Return the block IV for the current block
-	private byte[] getBlockIV() {
-		long fileIvLong = EncFSUtil.byteArrayToLong(fileIv);
-		return EncFSUtil.longToByteArray(blockNum ^ fileIvLong);
-	}
-
 	/*
 	 * Read one block (blockSize bytes) of data from the underlying
 	 * FileInputStream, decrypt it and store it in blockBuf for consumption via
-	 * read() methods
+	 * read() methods. The cipher and block buffers are reused across blocks.
 	 */
-	private int readBlock() throws IOException, EncFSCorruptDataException,
-			EncFSUnsupportedException {
-		byte[] cipherBuf = new byte[blockSize];
-		boolean zeroBlock = false;
-
-		int bytesRead = in.read(cipherBuf, 0, blockSize);
-		if (bytesRead == blockSize) { // block decode
-			/*
-			 * If file holes are allowed then we need to test whether the whole
-			 * block is made up of 0's. If not (which is going to be the case
-			 * for MAC header by default), we will do block decryption.
-			 */
-			if (config.isHolesAllowed()) {
-				zeroBlock = true;
-				for (int i = 0; i < cipherBuf.length; i++)
-					if (cipherBuf[i] != 0) {
-						zeroBlock = false;
-						break;
-					}
-			}
+	private int readBlock() throws IOException, EncFSCorruptDataException {
+		if (executor != null) {
+			return readBlockParallel();
+		}
 
-			try {
-				if (zeroBlock == true) {
-					blockBuf = cipherBuf;
-				} else {
-					blockBuf = EncFSCrypto.blockDecode(volume, getBlockIV(),
-							cipherBuf);
-				}
-			} catch (InvalidAlgorithmParameterException e) {
-				e.printStackTrace();
-			} catch (IllegalBlockSizeException e) {
-				throw new EncFSCorruptDataException(e);
-			} catch (BadPaddingException e) {
-				throw new EncFSCorruptDataException(e);
-			}
+		if (mapped != null) {
+			return readMappedBlock();
+		}
 
+		int bytesRead = in.read(cipherBuf, 0, blockSize);
+		if (bytesRead > 0) {
+			blockBufLen = EncFSBlockCodec.decodeBlock(volume, fileIv,
+					blockNum, cipherBuf, bytesRead, blockBuf);
 			bufCursor = blockHeaderSize;
 			blockNum++;
-		} else if (bytesRead > 0) { // stream decode
-			try {
-				blockBuf = EncFSCrypto.streamDecode(volume, getBlockIV(),
-						cipherBuf, 0, bytesRead);
-			} catch (InvalidAlgorithmParameterException e) {
-				e.printStackTrace();
-			} catch (IllegalBlockSizeException e) {
-				throw new EncFSCorruptDataException(e);
-			} catch (BadPaddingException e) {
-				throw new EncFSCorruptDataException(e);
+		}
+
+		return bytesRead;
+	}
+
+	/*
+	 * Decrypt the next block straight from the mapped file contents into
+	 * blockBuf, without copying the encrypted data into cipherBuf first
+	 */
+	private int readMappedBlock() throws EncFSCorruptDataException {
+		ByteBuffer block = nextMappedBlock();
+		if (block == null) {
+			return -1;
+		}
+
+		blockBufLen = EncFSBlockCodec.decodeBlock(volume, fileIv, blockNum,
+				block, blockBuf);
+		bufCursor = blockHeaderSize;
+		blockNum++;
+
+		return blockBufLen;
+	}
+
+	// Returns a view of the next encrypted block of the mapping, null at EOF
+	private ByteBuffer nextMappedBlock() {
+		int len = Math.min(blockSize, mapped.remaining());
+		if (len == 0) {
+			return null;
+		}
+		ByteBuffer block = mapped.slice();
+		block.limit(len);
+		mapped.position(mapped.position() + len);
+		return block;
+	}
+
+	/*
+	 * Take the next block off the read ahead queue and store its decrypted
+	 * contents in blockBuf, queueing up more blocks for decryption as needed
+	 */
+	private int readBlockParallel() throws IOException,
+			EncFSCorruptDataException {
+		fillReadAhead();
+
+		Future<byte[]> next = pendingBlocks.poll();
+		if (next == null) {
+			return -1;
+		}
+
+		byte[] decoded;
+		try {
+			decoded = next.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof EncFSCorruptDataException) {
+				throw (EncFSCorruptDataException) e.getCause();
 			}
-			bufCursor = blockHeaderSize;
-			blockNum++;
+			throw new IOException(e.getCause());
+		}
+
+		// Keep the pipeline busy while the caller consumes this block
+		fillReadAhead();
+
+		System.arraycopy(decoded, 0, blockBuf, 0, decoded.length);
+		blockBufLen = decoded.length;
+		bufCursor = blockHeaderSize;
+
+		return decoded.length;
+	}
+
+	// Read raw blocks and submit them for decryption up to the read ahead limit
+	private void fillReadAhead() throws IOException {
+		if (mapped != null) {
+			fillMappedReadAhead();
+			return;
 		}
 
-		// Verify the block header
-		if ((bytesRead > 0) && (blockHeaderSize > 0) && (zeroBlock == false)) {
-			byte mac[] = EncFSCrypto.mac64(volume.getMac(), blockBuf,
-					numMACBytes);
-			for (int i = 0; i < numMACBytes; i++) {
-				if (mac[7 - i] != blockBuf[i]) {
-					throw new EncFSCorruptDataException("Block MAC mismatch");
+		while (!inputEOF && pendingBlocks.size() < readAheadBlocks) {
+			final byte[] blockData = new byte[blockSize];
+			final int bytesRead = readFully(blockData);
+			if (bytesRead < blockSize) {
+				// Only the final block of a file may be partial
+				inputEOF = true;
+			}
+			if (bytesRead <= 0) {
+				break;
+			}
+
+			final long curBlockNum = blockNum++;
+			pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+				public byte[] call() throws EncFSCorruptDataException {
+					// Decode in place since the buffer is private to this task
+					int len = EncFSBlockCodec.decodeBlock(volume, fileIv,
+							curBlockNum, blockData, bytesRead, blockData);
+					if (len == blockData.length) {
+						return blockData;
+					}
+					byte[] result = new byte[len];
+					System.arraycopy(blockData, 0, result, 0, len);
+					return result;
 				}
+			}));
+		}
+	}
+
+	// Submit blocks of the mapping for decryption up to the read ahead limit
+	private void fillMappedReadAhead() {
+		while (pendingBlocks.size() < readAheadBlocks) {
+			final ByteBuffer block = nextMappedBlock();
+			if (block == null) {
+				break;
 			}
+
+			final long curBlockNum = blockNum++;
+			pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+				public byte[] call() throws EncFSCorruptDataException {
+					byte[] result = new byte[block.remaining()];
+					EncFSBlockCodec.decodeBlock(volume, fileIv, curBlockNum,
+							block, result);
+					return result;
+				}
+			}));
+		}
+	}
+
+	// Read up to a full buffer from the underlying source, returns bytes read
+	private int readFully(byte[] buf) throws IOException {
+		if (mapped != null) {
+			int bytesRead = Math.min(buf.length, mapped.remaining());
+			mapped.get(buf, 0, bytesRead);
+			return bytesRead;
 		}
 
-		return bytesRead;
+		return EncFSBlockCodec.readFully(in, buf, buf.length);
 	}
 }
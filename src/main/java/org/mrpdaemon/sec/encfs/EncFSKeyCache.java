@@ -0,0 +1,242 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * In-memory cache of password derived keys
+ * 
+ * Deriving the password key with PBKDF2 is deliberately slow, which adds up
+ * when the same volumes are opened over and over again. A key cache passed to
+ * the EncFSVolume constructors remembers the derived key of each successfully
+ * unlocked volume, keyed by the salt, iteration count and key size of the
+ * volume configuration along with the password.
+ * 
+ * Passwords themselves are never stored, entries are identified by a keyed
+ * hash of the password using a random secret of the cache. Keys are zeroed
+ * out when they are evicted, explicitly removed or the cache is cleared. The
+ * cache can be shared between threads.
+ */
+public class EncFSKeyCache {
+
+	/** Default maximum number of cached keys */
+	public final static int DEFAULT_CACHE_SIZE = 16;
+
+	// Cache entry identifier
+	private static class CacheKey {
+		private final String saltStr;
+		private final int iterationCount;
+		private final int volumeKeySize;
+		private final byte[] passwordHash;
+
+		CacheKey(EncFSConfig config, byte[] passwordHash) {
+			this.saltStr = config.getSaltStr();
+			this.iterationCount = config.getIterationCount();
+			this.volumeKeySize = config.getVolumeKeySize();
+			this.passwordHash = passwordHash;
+		}
+
+		// Whether this entry belongs to a volume with the given config
+		boolean matches(EncFSConfig config) {
+			return iterationCount == config.getIterationCount()
+					&& saltStr.equals(config.getSaltStr());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CacheKey)) {
+				return false;
+			}
+			CacheKey other = (CacheKey) obj;
+			return iterationCount == other.iterationCount
+					&& volumeKeySize == other.volumeKeySize
+					&& saltStr.equals(other.saltStr)
+					&& Arrays.equals(passwordHash, other.passwordHash);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(passwordHash) ^ saltStr.hashCode();
+		}
+	}
+
+	// Cached password keys, zeroed out when dropped
+	private final EncFSLRUCache<CacheKey, byte[]> cache;
+
+	// Random secret for hashing passwords
+	private final byte[] secret = new byte[32];
+
+	/**
+	 * Create a new key cache holding at most DEFAULT_CACHE_SIZE keys
+	 */
+	public EncFSKeyCache() {
+		this(DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Create a new key cache
+	 * 
+	 * @param maxSize
+	 *            Maximum number of keys to cache before the least recently
+	 *            used ones are evicted
+	 */
+	public EncFSKeyCache(int maxSize) {
+		this.cache = new EncFSLRUCache<CacheKey, byte[]>(maxSize) {
+			@Override
+			protected void evicted(CacheKey key, byte[] value) {
+				Arrays.fill(value, (byte) 0);
+			}
+		};
+		new SecureRandom().nextBytes(secret);
+	}
+
+	/**
+	 * Returns the password key for the given volume configuration and
+	 * password, deriving and caching it if it isn't cached yet
+	 * 
+	 * The key is cached even if it turns out to be wrong, use the EncFSVolume
+	 * constructors taking a key cache to only cache keys that unlock a volume.
+	 * 
+	 * @param config
+	 *            Volume configuration
+	 * @param password
+	 *            Volume password
+	 * 
+	 * @return Copy of the password key
+	 * 
+	 * @throws EncFSInvalidConfigException
+	 *             Unable to decode salt bytes
+	 * @throws EncFSUnsupportedException
+	 *             PBKDF2WithHmacSHA1 not supported by current runtime
+	 */
+	public byte[] getPasswordKey(EncFSConfig config, String password)
+			throws EncFSInvalidConfigException, EncFSUnsupportedException {
+		byte[] passwordKey = get(config, password);
+		if (passwordKey == null) {
+			passwordKey = EncFSCrypto.derivePasswordKey(config, password);
+			put(config, password, passwordKey);
+		}
+		return passwordKey;
+	}
+
+	/**
+	 * Returns the cached password key for the given volume configuration and
+	 * password
+	 * 
+	 * @param config
+	 *            Volume configuration
+	 * @param password
+	 *            Volume password
+	 * 
+	 * @return Copy of the cached password key, null if not cached
+	 * 
+	 * @throws EncFSUnsupportedException
+	 *             HmacSHA256 not supported by current runtime
+	 */
+	public byte[] get(EncFSConfig config, String password)
+			throws EncFSUnsupportedException {
+		byte[] passwordKey = cache.get(new CacheKey(config,
+				hashPassword(password)));
+		// Hand out copies so callers can't modify or zero out cached keys
+		return passwordKey == null ? null : passwordKey.clone();
+	}
+
+	/**
+	 * Adds a password key to the cache
+	 * 
+	 * @param config
+	 *            Volume configuration the key was derived for
+	 * @param password
+	 *            Password the key was derived from
+	 * @param passwordKey
+	 *            Password key, a copy of which is cached
+	 * 
+	 * @throws EncFSUnsupportedException
+	 *             HmacSHA256 not supported by current runtime
+	 */
+	public void put(EncFSConfig config, String password, byte[] passwordKey)
+			throws EncFSUnsupportedException {
+		CacheKey key = new CacheKey(config, hashPassword(password));
+		byte[] oldKey = cache.remove(key);
+		if (oldKey != null) {
+			Arrays.fill(oldKey, (byte) 0);
+		}
+		cache.put(key, passwordKey.clone());
+	}
+
+	/**
+	 * Removes and zeroes out all cached keys for the given volume
+	 * configuration
+	 * 
+	 * @param config
+	 *            Volume configuration to remove keys for
+	 * 
+	 * @return Number of keys removed
+	 */
+	public int evict(EncFSConfig config) {
+		int count = 0;
+		for (CacheKey key : cache.keys()) {
+			if (key.matches(config)) {
+				byte[] passwordKey = cache.remove(key);
+				if (passwordKey != null) {
+					Arrays.fill(passwordKey, (byte) 0);
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Removes and zeroes out all cached keys
+	 */
+	public void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Returns the number of cached keys
+	 * 
+	 * @return Number of cached keys
+	 */
+	public int size() {
+		return cache.size();
+	}
+
+	// Compute a keyed hash identifying the given password
+	private byte[] hashPassword(String password)
+			throws EncFSUnsupportedException {
+		try {
+			Mac hmac = Mac.getInstance("HmacSHA256");
+			hmac.init(new SecretKeySpec(secret, "HmacSHA256"));
+			return hmac.doFinal(password.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new EncFSUnsupportedException(e);
+		} catch (InvalidKeyException e) {
+			throw new EncFSUnsupportedException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new EncFSUnsupportedException(e);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size bounded map evicting the least recently used entries
+ * 
+ * All methods are synchronized so a cache can be shared between threads.
+ */
+class EncFSLRUCache<K, V> {
+
+	// Backing map in access order
+	private final LinkedHashMap<K, V> map;
+
+	// Maximum number of entries
+	private final int maxSize;
+
+	/**
+	 * Create a new cache holding at most maxSize entries
+	 * 
+	 * @param maxSize
+	 *            Maximum number of entries before the least recently used ones
+	 *            are evicted
+	 */
+	EncFSLRUCache(final int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Cache size must be positive");
+		}
+		this.maxSize = maxSize;
+		this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				if (size() > EncFSLRUCache.this.maxSize) {
+					evicted(eldest.getKey(), eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached value for the given key
+	 * 
+	 * @param key
+	 *            Key to look up
+	 * 
+	 * @return Cached value, null if not present
+	 */
+	synchronized V get(K key) {
+		return map.get(key);
+	}
+
+	/**
+	 * Adds the given entry to the cache, possibly evicting the least recently
+	 * used entry
+	 * 
+	 * @param key
+	 *            Key of the entry
+	 * @param value
+	 *            Value of the entry
+	 */
+	synchronized void put(K key, V value) {
+		map.put(key, value);
+	}
+
+	/**
+	 * Removes the entry for the given key
+	 * 
+	 * @param key
+	 *            Key of the entry to remove
+	 * 
+	 * @return Removed value, null if not present
+	 */
+	synchronized V remove(K key) {
+		return map.remove(key);
+	}
+
+	/**
+	 * Returns whether the cache holds an entry for the given key, without
+	 * counting as a use of the entry
+	 * 
+	 * @param key
+	 *            Key to look up
+	 * 
+	 * @return true if the key is cached
+	 */
+	synchronized boolean containsKey(K key) {
+		return map.containsKey(key);
+	}
+
+	/**
+	 * Returns a snapshot of the keys currently in the cache
+	 * 
+	 * @return List of cached keys in least recently used order
+	 */
+	synchronized List<K> keys() {
+		return new ArrayList<K>(map.keySet());
+	}
+
+	/**
+	 * Removes all entries from the cache
+	 */
+	synchronized void clear() {
+		for (Map.Entry<K, V> entry : map.entrySet()) {
+			evicted(entry.getKey(), entry.getValue());
+		}
+		map.clear();
+	}
+
+	/**
+	 * Returns the number of entries in the cache
+	 * 
+	 * @return Number of cached entries
+	 */
+	synchronized int size() {
+		return map.size();
+	}
+
+	/**
+	 * Returns the maximum number of entries in the cache
+	 * 
+	 * @return Maximum number of cached entries
+	 */
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Called with the cache lock held whenever an entry is dropped because the
+	 * cache is full or being cleared. Entries removed through remove() are
+	 * handed back to the caller instead.
+	 * 
+	 * @param key
+	 *            Key of the dropped entry
+	 * @param value
+	 *            Value of the dropped entry
+	 */
+	protected void evicted(K key, V value) {
+	}
+}
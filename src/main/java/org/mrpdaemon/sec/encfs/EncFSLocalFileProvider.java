@@ -19,10 +19,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -32,8 +39,14 @@ import java.util.List;
  * Note that all path parameters are relative to the rootPath provided to the
  * constructor. Thus, if one instantiates an EncFSFileProvider("/home/jdoe"),
  * the proper way to refer to /home/jdoe/dir/file.ext is by "dir/file.ext".
+ * 
+ * If memory mapping is enabled via setMemoryMapped(), files are read through
+ * read-only mappings of the file, letting the page cache serve repeated reads
+ * of the same file without copying the data through a FileInputStream.
  */
-public class EncFSLocalFileProvider implements EncFSFileProvider {
+public class EncFSLocalFileProvider implements EncFSDirectoryStreamProvider,
+		EncFSMappedFileProvider, EncFSRangeFileProvider,
+		EncFSChannelFileProvider {
 
 	/**
 	 * Path separator for the local filesystem
@@ -43,6 +56,9 @@ public class EncFSLocalFileProvider implements EncFSFileProvider {
 	// Root path of this file provider
 	private final File rootPath;
 
+	// Whether mapFile() should map files into memory
+	private volatile boolean memoryMapped;
+
 	/**
 	 * Creates a new EncFSLocalFileProvider
 	 * 
@@ -55,6 +71,29 @@ public class EncFSLocalFileProvider implements EncFSFileProvider {
 		this.separator = File.separator;
 	}
 
+	/**
+	 * Returns whether files are read through memory mappings
+	 * 
+	 * @return true if mapFile() maps files into memory, false otherwise
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Sets whether files are read through memory mappings
+	 * 
+	 * Mapping benefits workloads that repeatedly read the same large files.
+	 * Files that are larger than 2GB are always read through streams.
+	 * 
+	 * @param memoryMapped
+	 *            true to map files into memory for reading, false to read
+	 *            them through FileInputStreams
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
 	/**
 	 * Returns whether the given source path represents a directory in the
 	 * underlying filesystem
@@ -156,6 +195,33 @@ public class EncFSLocalFileProvider implements EncFSFileProvider {
 		return results;
 	}
 
+	/**
+	 * Opens a stream over the files under the given directory path
+	 * 
+	 * Entries are read from the filesystem as the stream is iterated.
+	 * 
+	 * @param dirPath
+	 *            Path of the directory to list files from
+	 * 
+	 * @return DirectoryStream of EncFSFileInfo representing files under the dir
+	 * 
+	 * @throws IOException
+	 *             Path not a directory or misc. I/O error
+	 */
+	public DirectoryStream<EncFSFileInfo> newDirectoryStream(String dirPath)
+			throws IOException {
+		File srcDir = new File(rootPath.getAbsoluteFile(), dirPath);
+		DirectoryStream<Path> stream = Files.newDirectoryStream(srcDir
+				.toPath());
+		return new EncFSMappedDirectoryStream<Path, EncFSFileInfo>(stream,
+				stream) {
+			@Override
+			protected EncFSFileInfo map(Path entry) {
+				return convertToFileInfo(entry.toFile());
+			}
+		};
+	}
+
 	/**
 	 * Move a file/directory to a different location
 	 * 
@@ -331,6 +397,93 @@ public class EncFSLocalFileProvider implements EncFSFileProvider {
 		return new FileInputStream(srcF);
 	}
 
+	/**
+	 * Open an InputStream to a range of the given file
+	 * 
+	 * The stream is positioned at the given offset through its FileChannel,
+	 * so the data preceding the range is never read.
+	 * 
+	 * @param srcFilePath
+	 *            Path to the source file
+	 * @param offset
+	 *            Offset in bytes to start reading the file from
+	 * @param length
+	 *            Maximum number of bytes to read
+	 * 
+	 * @return InputStream to read the range of the file from
+	 * 
+	 * @throws IOException
+	 *             Source file doesn't exist or misc. I/O error
+	 */
+	public InputStream openInputStream(String srcFilePath, long offset,
+			long length) throws IOException {
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("Negative offset or length");
+		}
+		File srcF = new File(rootPath.getAbsoluteFile(), srcFilePath);
+		FileInputStream fis = new FileInputStream(srcF);
+		try {
+			fis.getChannel().position(offset);
+		} catch (IOException e) {
+			fis.close();
+			throw e;
+		}
+		return new RangeInputStream(fis, length);
+	}
+
+	/**
+	 * Open a channel for reading and writing the given file
+	 * 
+	 * @param dstFilePath
+	 *            Path to the file
+	 * 
+	 * @return FileChannel to read from and write to the file
+	 * 
+	 * @throws IOException
+	 *             File doesn't exist or misc. I/O error
+	 */
+	public SeekableByteChannel openReadWriteChannel(String dstFilePath)
+			throws IOException {
+		File dstF = new File(rootPath.getAbsoluteFile(), dstFilePath);
+		if (!dstF.exists()) {
+			throw new FileNotFoundException("File '" + dstFilePath
+					+ "' doesn't exist!");
+		}
+		return new RandomAccessFile(dstF, "rw").getChannel();
+	}
+
+	/**
+	 * Map the contents of the given file into memory for reading
+	 * 
+	 * @param srcFilePath
+	 *            Path to the source file
+	 * 
+	 * @return Read-only buffer holding the file contents, null if memory
+	 *         mapping is disabled or the file is too large to map
+	 * 
+	 * @throws IOException
+	 *             Source file doesn't exist or misc. I/O error
+	 */
+	public ByteBuffer mapFile(String srcFilePath) throws IOException {
+		if (!memoryMapped) {
+			return null;
+		}
+
+		File srcF = new File(rootPath.getAbsoluteFile(), srcFilePath);
+		RandomAccessFile raf = new RandomAccessFile(srcF, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				return null;
+			}
+			// The mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+
 	/**
 	 * Open an OutputStream to the given file
 	 * 
@@ -373,6 +526,61 @@ public class EncFSLocalFileProvider implements EncFSFileProvider {
 		return new FileOutputStream(srcF);
 	}
 
+	// InputStream returning at most a given number of bytes of another stream
+	private static class RangeInputStream extends FilterInputStream {
+
+		// Number of bytes left in the range
+		private long remaining;
+
+		RangeInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int ret = in.read();
+			if (ret >= 0) {
+				remaining--;
+			}
+			return ret;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int ret = in.read(b, off, (int) Math.min(len, remaining));
+			if (ret > 0) {
+				remaining -= ret;
+			}
+			return ret;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long ret = in.skip(Math.min(n, remaining));
+			if (ret > 0) {
+				remaining -= ret;
+			}
+			return ret;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
 	// Convert the given File to an EncFSFileInfo
 	private EncFSFileInfo convertToFileInfo(File file) {
 		String relativePath;
@@ -0,0 +1,126 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * DirectoryStream that lazily converts the entries of an underlying source
+ * 
+ * Entries are converted as the caller iterates over the stream, entries for
+ * which map() returns null are skipped.
+ * 
+ * @param <S>
+ *            Type of the source entries
+ * @param <T>
+ *            Type of the entries returned by the stream
+ */
+abstract class EncFSMappedDirectoryStream<S, T> implements DirectoryStream<T> {
+
+	// Source entries
+	private final Iterable<S> source;
+
+	// Resource to close along with this stream, may be null
+	private final Closeable closeable;
+
+	// Whether iterator() has been called already
+	private boolean iteratorReturned;
+
+	// Whether the stream has been closed
+	private volatile boolean closed;
+
+	/**
+	 * Create a new stream over the given source
+	 * 
+	 * @param source
+	 *            Source entries
+	 * @param closeable
+	 *            Resource to close when this stream is closed, may be null
+	 */
+	EncFSMappedDirectoryStream(Iterable<S> source, Closeable closeable) {
+		this.source = source;
+		this.closeable = closeable;
+	}
+
+	/**
+	 * Convert a source entry
+	 * 
+	 * @param entry
+	 *            Source entry
+	 * 
+	 * @return Converted entry, null to skip the entry
+	 */
+	protected abstract T map(S entry);
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.file.DirectoryStream#iterator()
+	 */
+	public synchronized Iterator<T> iterator() {
+		if (closed) {
+			throw new IllegalStateException("Directory stream is closed");
+		}
+		if (iteratorReturned) {
+			throw new IllegalStateException("Iterator already obtained");
+		}
+		iteratorReturned = true;
+
+		final Iterator<S> sourceIterator = source.iterator();
+		return new Iterator<T>() {
+			// Next converted entry, null if not fetched yet
+			private T next;
+
+			public boolean hasNext() {
+				while (next == null && !closed && sourceIterator.hasNext()) {
+					next = map(sourceIterator.next());
+				}
+				return next != null;
+			}
+
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				T result = next;
+				next = null;
+				return result;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			if (closeable != null) {
+				closeable.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Optional interface for file providers that can map files into memory
+ * 
+ * Providers implementing this interface let EncFSFile.openInputStream() and
+ * EncFSFile.openChannel() read encrypted blocks straight out of a memory
+ * mapping of the file, rather than copying them through an InputStream.
+ */
+public interface EncFSMappedFileProvider extends EncFSFileProvider {
+
+	/**
+	 * Map the contents of the given file into memory for reading
+	 * 
+	 * @param srcFilePath
+	 *            Path to the source file
+	 * 
+	 * @return Read-only buffer holding the file contents, or null if the file
+	 *         can't be mapped and should be read through openInputStream()
+	 * 
+	 * @throws IOException
+	 *             Source file doesn't exist or misc. I/O error
+	 */
+	public ByteBuffer mapFile(String srcFilePath) throws IOException;
+}
@@ -0,0 +1,192 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.util.Arrays;
+
+/**
+ * Table driven codec for the Base64 variant EncFS uses in file names
+ * 
+ * Unlike regular Base64, EncFS packs bits starting from the least significant
+ * end of each byte, uses the alphabet ",-0-9A-Za-z" and has no padding. The
+ * methods here encode to and decode from caller supplied buffers so that file
+ * name conversion doesn't need intermediate arrays.
+ */
+public final class EncFSNameBase64 {
+
+	// Characters for each 6-bit value
+	private static final char[] ENCODE_TABLE = (",-0123456789"
+			+ "ABCDEFGHIJKLMNOPQRSTUVWXYZ" + "abcdefghijklmnopqrstuvwxyz")
+			.toCharArray();
+
+	// 6-bit values for each ASCII character, -1 for invalid characters
+	private static final byte[] DECODE_TABLE = new byte[128];
+
+	static {
+		Arrays.fill(DECODE_TABLE, (byte) -1);
+		for (int i = 0; i < ENCODE_TABLE.length; i++) {
+			DECODE_TABLE[ENCODE_TABLE[i]] = (byte) i;
+		}
+	}
+
+	private EncFSNameBase64() {
+	}
+
+	/**
+	 * Returns the number of characters needed to encode the given number of
+	 * bytes
+	 * 
+	 * @param len
+	 *            Number of bytes to encode
+	 * 
+	 * @return Number of characters of the encoded data
+	 */
+	public static int encodedLength(int len) {
+		return (len * 8 + 5) / 6;
+	}
+
+	/**
+	 * Returns the number of bytes the given number of characters decode to
+	 * 
+	 * @param len
+	 *            Number of characters to decode
+	 * 
+	 * @return Number of bytes of the decoded data
+	 */
+	public static int decodedLength(int len) {
+		return len * 6 / 8;
+	}
+
+	/**
+	 * Encode bytes into a character buffer
+	 * 
+	 * @param src
+	 *            Buffer containing the data to encode
+	 * @param srcOff
+	 *            Offset of the data in src
+	 * @param len
+	 *            Number of bytes to encode
+	 * @param dst
+	 *            Buffer to store encodedLength(len) characters into
+	 * @param dstOff
+	 *            Offset into dst to store the characters at
+	 * 
+	 * @return Number of characters stored
+	 */
+	public static int encode(byte[] src, int srcOff, int len, char[] dst,
+			int dstOff) {
+		int dstIdx = dstOff;
+		int work = 0;
+		int workBits = 0;
+
+		for (int srcIdx = srcOff; srcIdx < srcOff + len; srcIdx++) {
+			work |= (src[srcIdx] & 0xff) << workBits;
+			workBits += 8;
+
+			while (workBits >= 6) {
+				dst[dstIdx++] = ENCODE_TABLE[work & 0x3f];
+				work >>>= 6;
+				workBits -= 6;
+			}
+		}
+
+		// Leftover bits of the last byte
+		if (workBits > 0) {
+			dst[dstIdx++] = ENCODE_TABLE[work & 0x3f];
+		}
+
+		return dstIdx - dstOff;
+	}
+
+	/**
+	 * Encode bytes into a string
+	 * 
+	 * @param src
+	 *            Buffer containing the data to encode
+	 * @param srcOff
+	 *            Offset of the data in src
+	 * @param len
+	 *            Number of bytes to encode
+	 * 
+	 * @return Encoded string
+	 */
+	public static String encode(byte[] src, int srcOff, int len) {
+		char[] dst = new char[encodedLength(len)];
+		encode(src, srcOff, len, dst, 0);
+		return new String(dst);
+	}
+
+	/**
+	 * Decode characters into a byte buffer
+	 * 
+	 * @param src
+	 *            Characters to decode
+	 * @param dst
+	 *            Buffer to store decodedLength(src.length()) bytes into
+	 * @param dstOff
+	 *            Offset into dst to store the bytes at
+	 * 
+	 * @return Number of bytes stored
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             src contains characters outside of the EncFS alphabet
+	 */
+	public static int decode(CharSequence src, byte[] dst, int dstOff)
+			throws EncFSCorruptDataException {
+		int dstIdx = dstOff;
+		int work = 0;
+		int workBits = 0;
+
+		int len = src.length();
+		for (int srcIdx = 0; srcIdx < len; srcIdx++) {
+			char ch = src.charAt(srcIdx);
+			int value = ch < DECODE_TABLE.length ? DECODE_TABLE[ch] : -1;
+			if (value < 0) {
+				throw new EncFSCorruptDataException("Invalid character '" + ch
+						+ "' in encoded name");
+			}
+
+			work |= value << workBits;
+			workBits += 6;
+
+			if (workBits >= 8) {
+				dst[dstIdx++] = (byte) work;
+				work >>>= 8;
+				workBits -= 8;
+			}
+		}
+
+		return dstIdx - dstOff;
+	}
+
+	/**
+	 * Decode characters into a new byte array
+	 * 
+	 * @param src
+	 *            Characters to decode
+	 * 
+	 * @return Decoded bytes
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             src contains characters outside of the EncFS alphabet
+	 */
+	public static byte[] decode(CharSequence src)
+			throws EncFSCorruptDataException {
+		byte[] dst = new byte[decodedLength(src.length())];
+		decode(src, dst, 0);
+		return dst;
+	}
+}
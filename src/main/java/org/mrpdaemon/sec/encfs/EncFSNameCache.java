@@ -0,0 +1,153 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+/**
+ * Cache of encrypted/decrypted file names for a volume
+ * 
+ * Names are cached by their plaintext parent path, since with chained name IVs
+ * the encrypted form of a name depends on the directory hosting it. Entries are
+ * evicted in least recently used order once the cache is full.
+ * 
+ * A name's encrypted form only depends on its plaintext parent path, so
+ * entries never go stale and are left in place when paths are moved or
+ * deleted; dead entries simply age out.
+ * 
+ * The cache also memoizes the chained name IV of directories, so that names
+ * under a directory only need the IV of their parent to be computed once.
+ */
+class EncFSNameCache {
+
+	// Plaintext path of a file -> encrypted name of the file
+	private final EncFSLRUCache<String, String> encodedNames;
+
+	// Plaintext parent path + encrypted name -> plaintext name
+	private final EncFSLRUCache<String, String> decodedNames;
+
+	// Plaintext directory path -> chained name IV of the directory
+	private final EncFSLRUCache<String, byte[]> chainIvs;
+
+	/**
+	 * Create a new name cache
+	 * 
+	 * @param maxSize
+	 *            Maximum number of names to cache in each direction
+	 */
+	EncFSNameCache(int maxSize) {
+		this.encodedNames = new EncFSLRUCache<String, String>(maxSize);
+		this.decodedNames = new EncFSLRUCache<String, String>(maxSize);
+		this.chainIvs = new EncFSLRUCache<String, byte[]>(maxSize);
+	}
+
+	/**
+	 * Returns the cached chained name IV for the given directory
+	 * 
+	 * @param volumePath
+	 *            Plaintext path of the directory
+	 * 
+	 * @return Copy of the chain IV, null if not cached
+	 */
+	byte[] getChainIv(String volumePath) {
+		byte[] chainIv = chainIvs.get(normalize(volumePath));
+		return (chainIv == null) ? null : chainIv.clone();
+	}
+
+	/**
+	 * Cache the chained name IV for the given directory
+	 * 
+	 * @param volumePath
+	 *            Plaintext path of the directory
+	 * @param chainIv
+	 *            Chain IV of the directory, a copy is stored
+	 */
+	void putChainIv(String volumePath, byte[] chainIv) {
+		chainIvs.put(normalize(volumePath), chainIv.clone());
+	}
+
+	/**
+	 * Returns the cached encrypted name for the given plaintext name
+	 * 
+	 * @param volumePath
+	 *            Plaintext path of the parent directory
+	 * @param name
+	 *            Plaintext file name
+	 * 
+	 * @return Encrypted name, null if not cached
+	 */
+	String getEncodedName(String volumePath, String name) {
+		return encodedNames.get(key(volumePath, name));
+	}
+
+	/**
+	 * Returns the cached plaintext name for the given encrypted name
+	 * 
+	 * @param volumePath
+	 *            Plaintext path of the parent directory
+	 * @param encodedName
+	 *            Encrypted file name
+	 * 
+	 * @return Plaintext name, null if not cached
+	 */
+	String getDecodedName(String volumePath, String encodedName) {
+		return decodedNames.get(key(volumePath, encodedName));
+	}
+
+	/**
+	 * Cache the given plaintext/encrypted name pair in both directions
+	 * 
+	 * @param volumePath
+	 *            Plaintext path of the parent directory
+	 * @param name
+	 *            Plaintext file name
+	 * @param encodedName
+	 *            Encrypted file name
+	 */
+	void put(String volumePath, String name, String encodedName) {
+		encodedNames.put(key(volumePath, name), encodedName);
+		decodedNames.put(key(volumePath, encodedName), name);
+	}
+
+	/**
+	 * Drop all cached names
+	 */
+	void clear() {
+		encodedNames.clear();
+		decodedNames.clear();
+		chainIvs.clear();
+	}
+
+	/**
+	 * Returns the number of cached names
+	 * 
+	 * @return Number of cached plaintext to encrypted name mappings
+	 */
+	int size() {
+		return encodedNames.size();
+	}
+
+	// Build the cache key for a name under the given directory
+	private static String key(String volumePath, String name) {
+		return normalize(volumePath) + EncFSVolume.PATH_SEPARATOR + name;
+	}
+
+	// Strip the trailing separator, the root directory maps to ""
+	private static String normalize(String path) {
+		if (path.endsWith(EncFSVolume.PATH_SEPARATOR)) {
+			return path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+}
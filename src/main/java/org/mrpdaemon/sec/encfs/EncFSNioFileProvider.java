@@ -0,0 +1,447 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Class implementing an EncFSFileProvider on top of java.nio.file
+ * 
+ * Functionally equivalent to EncFSLocalFileProvider, but file information is
+ * read with a single attribute query per file instead of one call per
+ * property, and directories are listed through a DirectoryStream. On
+ * filesystems supporting POSIX attributes the readable/writable/executable
+ * flags reflect the owner permission bits of the file.
+ * 
+ * As with EncFSLocalFileProvider, all path parameters are relative to the root
+ * path provided to the constructor.
+ */
+public class EncFSNioFileProvider implements EncFSDirectoryStreamProvider {
+
+	/**
+	 * Path separator for the underlying filesystem
+	 */
+	public final String separator;
+
+	// Root path of this file provider
+	private final Path rootPath;
+
+	// Whether the underlying filesystem supports POSIX attributes
+	private final boolean posix;
+
+	/**
+	 * Creates a new EncFSNioFileProvider
+	 * 
+	 * @param rootPath
+	 *            Root path of the file provider (all other paths will be
+	 *            relative to this)
+	 */
+	public EncFSNioFileProvider(Path rootPath) {
+		this.rootPath = rootPath.toAbsolutePath();
+		this.separator = rootPath.getFileSystem().getSeparator();
+		this.posix = rootPath.getFileSystem().supportedFileAttributeViews()
+				.contains("posix");
+	}
+
+	/**
+	 * Get a Path object representing the given path
+	 * 
+	 * @param path
+	 *            Path of the file or directory
+	 * 
+	 * @return Path object representing the given path
+	 */
+	public Path getPath(String path) {
+		int start = 0;
+		while (start < path.length()
+				&& (path.startsWith(separator, start) || path.startsWith(
+						EncFSVolume.PATH_SEPARATOR, start))) {
+			start++;
+		}
+		if (start == path.length()) {
+			return rootPath;
+		}
+		return rootPath.resolve(path.substring(start));
+	}
+
+	/**
+	 * Returns whether the given source path represents a directory in the
+	 * underlying filesystem
+	 * 
+	 * @param srcPath
+	 *            Path of the source file or directory
+	 * 
+	 * @return true if path represents a directory, false otherwise
+	 */
+	public boolean isDirectory(String srcPath) {
+		return Files.isDirectory(getPath(srcPath));
+	}
+
+	/**
+	 * Returns whether the file or directory exists
+	 * 
+	 * @param srcPath
+	 *            Path of the file or directory
+	 * 
+	 * @return true if file or directory exists, false otherwise
+	 */
+	public boolean exists(String srcPath) {
+		return Files.exists(getPath(srcPath));
+	}
+
+	/**
+	 * Returns the path separator for the underlying filesystem
+	 * 
+	 * @return String representing the path separator
+	 */
+	public final String getSeparator() {
+		return separator;
+	}
+
+	/**
+	 * Returns the root path for the underlying filesystem
+	 * 
+	 * @return String representing the root path
+	 */
+	public final String getRootPath() {
+		return "/";
+	}
+
+	/**
+	 * Return EncFSFileInfo for the given file or directory
+	 * 
+	 * @param srcPath
+	 *            Path of the file or directory
+	 * 
+	 * @return EncFSFileInfo for the given file or directory
+	 * 
+	 * @throws IOException
+	 *             Path doesn't exist or misc. I/O error
+	 */
+	public EncFSFileInfo getFileInfo(String srcPath) throws IOException {
+		return convertToFileInfo(getPath(srcPath));
+	}
+
+	/**
+	 * Returns the list of files under the given directory path
+	 * 
+	 * @param dirPath
+	 *            Path of the directory to list files from
+	 * 
+	 * @return a List of EncFSFileInfo representing files under the dir
+	 * 
+	 * @throws IOException
+	 *             Path not a directory or misc. I/O error
+	 */
+	public List<EncFSFileInfo> listFiles(String dirPath) throws IOException {
+		List<EncFSFileInfo> results = new ArrayList<EncFSFileInfo>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(getPath(dirPath));
+		try {
+			for (Path entry : stream) {
+				try {
+					results.add(convertToFileInfo(entry));
+				} catch (NoSuchFileException e) {
+					// Entry was removed while listing
+				}
+			}
+		} catch (DirectoryIteratorException e) {
+			throw e.getCause();
+		} finally {
+			stream.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Opens a stream over the files under the given directory path
+	 * 
+	 * Entries are read from the filesystem as the stream is iterated. I/O
+	 * errors during iteration are thrown as DirectoryIteratorException.
+	 * 
+	 * @param dirPath
+	 *            Path of the directory to list files from
+	 * 
+	 * @return DirectoryStream of EncFSFileInfo representing files under the dir
+	 * 
+	 * @throws IOException
+	 *             Path not a directory or misc. I/O error
+	 */
+	public DirectoryStream<EncFSFileInfo> newDirectoryStream(String dirPath)
+			throws IOException {
+		DirectoryStream<Path> stream = Files.newDirectoryStream(getPath(dirPath));
+		return new EncFSMappedDirectoryStream<Path, EncFSFileInfo>(stream,
+				stream) {
+			@Override
+			protected EncFSFileInfo map(Path entry) {
+				try {
+					return convertToFileInfo(entry);
+				} catch (NoSuchFileException e) {
+					// Entry was removed while listing
+					return null;
+				} catch (IOException e) {
+					throw new DirectoryIteratorException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Move a file/directory to a different location
+	 * 
+	 * @param srcPath
+	 *            Path to the source file or directory
+	 * @param dstPath
+	 *            Path for the destination file or directory
+	 * 
+	 * @return true if the move is successful, false otherwise
+	 * 
+	 * @throws IOException
+	 *             Source file/dir doesn't exist or misc. I/O error
+	 */
+	public boolean move(String srcPath, String dstPath) throws IOException {
+		Path sourceFile = getPath(srcPath);
+		if (!Files.exists(sourceFile)) {
+			throw new FileNotFoundException("Path '" + srcPath
+					+ "' doesn't exist!");
+		}
+
+		try {
+			Files.move(sourceFile, getPath(dstPath));
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		} catch (NoSuchFileException e) {
+			// Destination directory doesn't exist
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Delete the file or directory with the given path
+	 * 
+	 * @param srcPath
+	 *            Path of the source file or directory
+	 * 
+	 * @return true if deletion is successful, false otherwise
+	 * 
+	 * @throws IOException
+	 *             Misc. I/O error
+	 */
+	public boolean delete(String srcPath) throws IOException {
+		try {
+			return Files.deleteIfExists(getPath(srcPath));
+		} catch (DirectoryNotEmptyException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Create a directory with the given path
+	 * 
+	 * Note that all path elements except the last one must exist for this
+	 * method. If that is not true mkdirs should be used instead
+	 * 
+	 * @param dirPath
+	 *            Path to create a directory under
+	 * 
+	 * @return true if creation succeeds, false otherwise
+	 * 
+	 * @throws IOException
+	 *             Path doesn't exist or misc. I/O error
+	 */
+	public boolean mkdir(String dirPath) throws IOException {
+		Path dir = getPath(dirPath);
+		Path parent = dir.getParent();
+		if (parent != null && !Files.exists(parent)) {
+			throw new FileNotFoundException("Path '" + parent
+					+ "' doesn't exist!");
+		}
+
+		try {
+			Files.createDirectory(dir);
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Create a directory with the given path
+	 * 
+	 * Intermediate directories are also created by this method
+	 * 
+	 * @param dirPath
+	 *            Path to create a directory under
+	 * 
+	 * @return true if creation succeeds, false otherwise
+	 * 
+	 * @throws IOException
+	 *             Misc. I/O error
+	 */
+	public boolean mkdirs(String dirPath) throws IOException {
+		Path dir = getPath(dirPath);
+		if (Files.exists(dir)) {
+			return false;
+		}
+
+		try {
+			Files.createDirectories(dir);
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Create a file with the given path
+	 * 
+	 * @param dstFilePath
+	 *            Path for the file to create
+	 * 
+	 * @return EncFSFileInfo for the created file
+	 * 
+	 * @throws IOException
+	 *             File already exists or misc. I/O error
+	 */
+	public EncFSFileInfo createFile(String dstFilePath) throws IOException {
+		Path targetFile = getPath(dstFilePath);
+		try {
+			Files.createFile(targetFile);
+		} catch (FileAlreadyExistsException e) {
+			throw new IOException("File already exists");
+		}
+		return convertToFileInfo(targetFile);
+	}
+
+	/**
+	 * Copy the file with the given path to another destination
+	 * 
+	 * @param srcFilePath
+	 *            Path to the file to copy
+	 * @param dstFilePath
+	 *            Path to the destination file
+	 * 
+	 * @return true if copy was successful, false otherwise
+	 * 
+	 * @throws IOException
+	 *             Source file doesn't exist or misc. I/O error
+	 */
+	public boolean copy(String srcFilePath, String dstFilePath)
+			throws IOException {
+		Path sourceFile = getPath(srcFilePath);
+		if (!Files.exists(sourceFile)) {
+			throw new FileNotFoundException("Source file '" + srcFilePath
+					+ "' doesn't exist!");
+		}
+
+		Files.copy(sourceFile, getPath(dstFilePath),
+				StandardCopyOption.REPLACE_EXISTING);
+		return true;
+	}
+
+	/**
+	 * Open an InputStream to the given file
+	 * 
+	 * @param srcFilePath
+	 *            Path to the source file
+	 * 
+	 * @return InputStream to read from the file
+	 * 
+	 * @throws IOException
+	 *             Source file doesn't exist or misc. I/O error
+	 */
+	public InputStream openInputStream(String srcFilePath) throws IOException {
+		return Files.newInputStream(getPath(srcFilePath));
+	}
+
+	/**
+	 * Open an OutputStream to the given file
+	 * 
+	 * @param dstFilePath
+	 *            Path to the destination file
+	 * @param outputLength
+	 *            Length in bytes of the stream that will be written to this
+	 *            stream. It is ignored by this class.
+	 * 
+	 * @return OutputStream to write to the file
+	 * 
+	 * @throws IOException
+	 *             Misc. I/O error
+	 */
+	public OutputStream openOutputStream(String dstFilePath, long outputLength)
+			throws IOException {
+		return Files.newOutputStream(getPath(dstFilePath));
+	}
+
+	// Convert the given Path to an EncFSFileInfo with one attribute read
+	private EncFSFileInfo convertToFileInfo(Path file) throws IOException {
+		String relativePath;
+		String name;
+		Path parent = file.getParent();
+		if (file.equals(rootPath)) {
+			// we're dealing with the root dir
+			relativePath = separator;
+			name = "";
+		} else {
+			name = file.getFileName().toString();
+			if (parent.equals(rootPath)) {
+				// File is child of the root path
+				relativePath = separator;
+			} else {
+				relativePath = separator + rootPath.relativize(parent);
+			}
+		}
+
+		boolean readable, writable, executable;
+		BasicFileAttributes attrs;
+		if (posix) {
+			PosixFileAttributes posixAttrs = Files.readAttributes(file,
+					PosixFileAttributes.class);
+			Set<PosixFilePermission> perms = posixAttrs.permissions();
+			readable = perms.contains(PosixFilePermission.OWNER_READ);
+			writable = perms.contains(PosixFilePermission.OWNER_WRITE);
+			executable = perms.contains(PosixFilePermission.OWNER_EXECUTE);
+			attrs = posixAttrs;
+		} else {
+			attrs = Files.readAttributes(file, BasicFileAttributes.class);
+			readable = Files.isReadable(file);
+			writable = Files.isWritable(file);
+			executable = Files.isExecutable(file);
+		}
+
+		return new EncFSFileInfo(name, relativePath, attrs.isDirectory(),
+				attrs.lastModifiedTime().toMillis(), attrs.size(), readable,
+				writable, executable);
+	}
+
+}
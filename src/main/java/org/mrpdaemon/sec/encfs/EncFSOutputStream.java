@@ -20,7 +20,13 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -29,6 +35,9 @@ import javax.crypto.IllegalBlockSizeException;
 /**
  * FilterOutputStream extension that allows encrypted data to be written to a
  * file on an EncFS volume.
+ * 
+ * When constructed with an ExecutorService, full blocks are encrypted in
+ * parallel on the executor and written to the underlying stream in order.
  */
 public class EncFSOutputStream extends FilterOutputStream {
 
@@ -47,12 +56,21 @@ public class EncFSOutputStream extends FilterOutputStream {
 	// IV used for this file
 	private byte[] fileIv;
 
+	// IV used for this file as a 64-bit value
+	private final long fileIvLong;
+
 	// Buffer to hold file header contents (uniqueIV)
 	private byte[] fileHeader;
 
 	// Buffer to hold the currently cached data contents to be written
 	private final byte dataBuf[];
 
+	// Buffer to hold the encrypted contents of the block being written
+	private final byte encBuf[];
+
+	// Buffer to hold random bytes for the block header
+	private final byte randomBytes[];
+
 	// Count of the cached data bytes about to be written
 	private int dataBytes;
 
@@ -74,6 +92,15 @@ public class EncFSOutputStream extends FilterOutputStream {
 	// Cipher to use for stream encryption
 	private final Cipher streamCipher;
 
+	// Executor for encrypting full blocks, null for serial encryption
+	private final ExecutorService executor;
+
+	// Maximum number of blocks being encrypted before writes block
+	private final int maxPendingBlocks;
+
+	// Pending block encryptions in file order
+	private final Deque<Future<byte[]>> pendingBlocks;
+
 	/**
 	 * Create a new EncFSOutputStream for writing encrypted data to a file on an
 	 * EncFS volume
@@ -90,7 +117,40 @@ public class EncFSOutputStream extends FilterOutputStream {
 	 */
 	public EncFSOutputStream(EncFSVolume volume, OutputStream out)
 			throws EncFSUnsupportedException, EncFSCorruptDataException {
+		this(volume, out, null, 0);
+	}
+
+	/**
+	 * Create a new EncFSOutputStream for writing encrypted data to a file on an
+	 * EncFS volume, encrypting blocks in parallel on the given executor
+	 * 
+	 * @param volume
+	 *            Volume hosting the file to write
+	 * @param out
+	 *            Output stream for writing the encrypted (raw) data
+	 * @param executor
+	 *            Executor to encrypt blocks on, null to encrypt blocks on the
+	 *            calling thread
+	 * @param maxPendingBlocks
+	 *            Maximum number of blocks queued for encryption before writes
+	 *            wait for earlier blocks to be written out
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             File data is corrupt
+	 * @throws EncFSUnsupportedException
+	 *             Unsupported EncFS configuration
+	 */
+	public EncFSOutputStream(EncFSVolume volume, OutputStream out,
+			ExecutorService executor, int maxPendingBlocks)
+			throws EncFSUnsupportedException, EncFSCorruptDataException {
 		super(out);
+		if (executor != null && maxPendingBlocks < 1) {
+			throw new IllegalArgumentException(
+					"At least one pending block must be allowed");
+		}
+		this.executor = executor;
+		this.maxPendingBlocks = maxPendingBlocks;
+		this.pendingBlocks = new ArrayDeque<Future<byte[]>>();
 		this.volume = volume;
 		this.config = volume.getConfig();
 		this.blockSize = config.getBlockSize();
@@ -123,6 +183,8 @@ public class EncFSOutputStream extends FilterOutputStream {
 			this.fileIv = new byte[8];
 		}
 
+		this.fileIvLong = EncFSUtil.byteArrayToLong(fileIv);
+
 		this.blockCipher = EncFSCrypto.newBlockCipher();
 		try {
 			EncFSCrypto.cipherInit(volume, Cipher.ENCRYPT_MODE, blockCipher,
@@ -140,6 +202,8 @@ public class EncFSOutputStream extends FilterOutputStream {
 
 		// blockSize = blockHeaderSize + blockDataLen
 		dataBuf = new byte[blockSize];
+		encBuf = new byte[blockSize];
+		randomBytes = new byte[blockMACRandLen];
 	}
 
 	// Flush the internal buffer
@@ -153,82 +217,75 @@ public class EncFSOutputStream extends FilterOutputStream {
 			out.write(this.fileHeader);
 		}
 
-		// Fill in the block header
-		if (blockHeaderSize > 0) {
+		// Add random bytes to the block header
+		if (blockMACRandLen > 0) {
+			secureRandom.nextBytes(randomBytes);
+			System.arraycopy(randomBytes, 0, dataBuf, blockMACLen,
+					blockMACRandLen);
+		}
 
-			// Add random bytes to the buffer
-			if (blockMACRandLen > 0) {
-				byte randomBytes[] = new byte[blockMACRandLen];
-				secureRandom.nextBytes(randomBytes);
-				for (int i = 0; i < blockMACRandLen; i++) {
-					dataBuf[blockMACLen + i] = randomBytes[i];
-				}
+		if (executor != null) {
+			if (isFinal == false) {
+				submitBlock();
+				dataBytes = blockHeaderSize;
+				curBlockIndex++;
+				return;
 			}
 
-			// Compute MAC bytes and add them to the buffer
-			byte mac[] = EncFSCrypto.mac64(volume.getMac(), dataBuf,
-					blockMACLen, dataBytes - blockMACLen);
-			for (int i = 0; i < blockMACLen; i++) {
-				dataBuf[i] = mac[7 - i];
-			}
+			// Earlier blocks must reach the stream before the final one
+			drainPendingBlocks(0);
 		}
 
-		byte[] encBuffer;
+		int encBytes;
 		try {
-			if (dataBytes == dataBuf.length) {
-				/*
-				 * If allowHoles is configured, we scan the buffer to determine
-				 * whether we should pass this block through as a zero block.
-				 * Note that it is intended for the presence of a MAC header to
-				 * cause this check to fail.
-				 */
-				boolean zeroBlock = false;
-				if (config.isHolesAllowed()) {
-					zeroBlock = true;
-					for (int i = 0; i < dataBuf.length; i++) {
-						if (dataBuf[i] != 0) {
-							zeroBlock = false;
-							break;
-						}
-					}
-				}
-
-				if (zeroBlock == true) {
-					encBuffer = dataBuf;
-				} else {
-					encBuffer = EncFSCrypto.blockEncode(volume, getBlockIV(),
-							dataBuf);
-				}
-			} else {
-				encBuffer = EncFSCrypto.streamEncode(volume, getBlockIV(),
-						dataBuf, 0, dataBytes);
-			}
-		} catch (IllegalBlockSizeException e) {
-			throw new IOException(e);
-		} catch (BadPaddingException e) {
-			throw new IOException(e);
-		} catch (InvalidAlgorithmParameterException e) {
-			throw new IOException(e);
-		} catch (EncFSUnsupportedException e) {
+			encBytes = EncFSBlockCodec.encodeBlock(volume, fileIvLong,
+					curBlockIndex, dataBuf, dataBytes, encBuf);
+		} catch (EncFSCorruptDataException e) {
 			throw new IOException(e);
 		}
 
-		out.write(encBuffer);
+		out.write(encBuf, 0, encBytes);
 		dataBytes = blockHeaderSize;
 		curBlockIndex++;
 	}
 
-	// Return the block IV for the current block
-	private byte[] getBlockIV() {
-		long fileIvLong = EncFSUtil.byteArrayToLong(fileIv);
-		return EncFSUtil.longToByteArray(curBlockIndex ^ fileIvLong);
-	}
-
 	// Flush the internal buffer
 	private void writeBuffer() throws IOException {
 		writeBuffer(false);
 	}
 
+	// Queue the full block in dataBuf for encryption on the executor
+	private void submitBlock() throws IOException {
+		// Make room in the queue by writing out the oldest blocks
+		drainPendingBlocks(maxPendingBlocks - 1);
+
+		// Encode in place since the buffer is private to this task
+		final byte[] blockData = Arrays.copyOf(dataBuf, dataBytes);
+		final long blockNum = curBlockIndex;
+		pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+			public byte[] call() throws EncFSCorruptDataException {
+				EncFSBlockCodec.encodeBlock(volume, fileIvLong, blockNum,
+						blockData, blockData.length, blockData);
+				return blockData;
+			}
+		}));
+	}
+
+	// Write out encrypted blocks until at most maxRemaining are pending
+	private void drainPendingBlocks(int maxRemaining) throws IOException {
+		while (pendingBlocks.size() > maxRemaining) {
+			Future<byte[]> next = pendingBlocks.poll();
+			try {
+				out.write(next.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -272,6 +329,17 @@ public class EncFSOutputStream extends FilterOutputStream {
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.FilterOutputStream#flush()
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		drainPendingBlocks(0);
+		super.flush();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -0,0 +1,49 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Optional interface for file providers that can open files at an offset
+ * 
+ * Providers implementing this interface let random access reads through
+ * EncFSFile.read() and EncFSFile.openChannel() fetch just the file header and
+ * the blocks they need, instead of streaming the whole file up to the
+ * requested position. This matters most for remote or slow storage.
+ */
+public interface EncFSRangeFileProvider extends EncFSFileProvider {
+
+	/**
+	 * Open an InputStream to a range of the given file
+	 * 
+	 * @param srcFilePath
+	 *            Path to the source file
+	 * @param offset
+	 *            Offset in bytes to start reading the file from
+	 * @param length
+	 *            Maximum number of bytes to read, the stream ends earlier if
+	 *            the end of the file is reached first
+	 * 
+	 * @return InputStream to read the range of the file from
+	 * 
+	 * @throws IOException
+	 *             Source file doesn't exist or misc. I/O error
+	 */
+	public InputStream openInputStream(String srcFilePath, long offset,
+			long length) throws IOException;
+}
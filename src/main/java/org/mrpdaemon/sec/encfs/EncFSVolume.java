@@ -23,7 +23,13 @@ import java.io.OutputStream;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
 import javax.crypto.Mac;
@@ -34,6 +40,9 @@ import javax.crypto.Mac;
  * The volume is defined by a root folder, which contains an EncFS configuration
  * file and a hierarchy of encrypted files and subdirectories created by a
  * compliant EncFS implementation.
+ * 
+ * A volume object can be shared by multiple threads. Cipher and MAC objects
+ * returned by the volume are specific to the calling thread.
  */
 public class EncFSVolume {
 	/** Standard name of the EncFS volume configuration file */
@@ -52,11 +61,40 @@ public class EncFSVolume {
 	/** Length in bytes of the volume initialization vector (IV) */
 	public final static int IV_LENGTH = 16;
 
+	/** Default number of file names cached by a volume */
+	public final static int DEFAULT_NAME_CACHE_SIZE = 10000;
+
+	// Number of files deleted by each executor task without bulk deletes
+	private final static int DELETE_CHUNK_SIZE = 64;
+
 	// Path operations
 	private static enum PathOperation {
 		MOVE, COPY
 	}
 
+	// Directory copy/move whose contents are being processed on an executor
+	private static class PendingDirOperation {
+		// Encrypted source and destination paths of the directory
+		final String encSrcPath;
+		final String encDstPath;
+
+		// Whether the destination directory could be created
+		final boolean created;
+
+		// Results of file operations submitted to the executor
+		final List<Future<Boolean>> files = new ArrayList<Future<Boolean>>();
+
+		// Subdirectories processed recursively
+		final List<PendingDirOperation> subDirs = new ArrayList<PendingDirOperation>();
+
+		PendingDirOperation(String encSrcPath, String encDstPath,
+				boolean created) {
+			this.encSrcPath = encSrcPath;
+			this.encDstPath = encDstPath;
+			this.created = created;
+		}
+	}
+
 	// Volume configuration
 	private EncFSConfig config;
 
@@ -66,17 +104,26 @@ public class EncFSVolume {
 	// Volume initialization vector for use with the volume key
 	private byte[] iv;
 
+	// Precomputed HMAC state of the volume key for IV derivation, or null
+	private EncFSHmacSha1 ivHmac;
+
 	// Password-based key/IV
 	private byte[] passwordKey;
 
-	// Volume MAC object to use for checksum computations
-	private Mac mac;
+	/*
+	 * Cipher and Mac objects are stateful, so each thread gets its own
+	 * instances built from the volume key. This allows a single volume object
+	 * to be shared by many threads without paying for key derivation again.
+	 */
+
+	// Per-thread volume MAC object to use for checksum computations
+	private ThreadLocal<Mac> mac;
 
-	// Volume stream cipher
-	private Cipher streamCipher;
+	// Per-thread volume stream cipher
+	private ThreadLocal<Cipher> streamCipher;
 
-	// Volume block cipher
-	private Cipher blockCipher;
+	// Per-thread volume block cipher
+	private ThreadLocal<Cipher> blockCipher;
 
 	// Root directory object
 	private EncFSFile rootDir;
@@ -84,6 +131,10 @@ public class EncFSVolume {
 	// File provider for this volume
 	private EncFSFileProvider fileProvider;
 
+	// Cache of encrypted/decrypted file names, null if disabled
+	private volatile EncFSNameCache nameCache = new EncFSNameCache(
+			DEFAULT_NAME_CACHE_SIZE);
+
 	/**
 	 * Creates a new object representing an existing EncFS volume
 	 * 
@@ -164,6 +215,72 @@ public class EncFSVolume {
 		this.init(fileProvider, password);
 	}
 
+	/**
+	 * Creates a new object representing an existing EncFS volume, looking up
+	 * the password-based key in the given cache
+	 * 
+	 * The password-based key is only derived if the cache doesn't have it yet,
+	 * and is added to the cache once it successfully unlocked the volume.
+	 * 
+	 * @param rootPath
+	 *            Path of the root directory of the EncFS volume on the local
+	 *            filesystem
+	 * @param password
+	 *            User supplied password to decrypt volume key
+	 * @param keyCache
+	 *            Cache of password-based keys
+	 * 
+	 * @throws EncFSInvalidPasswordException
+	 *             Given password is incorrect
+	 * @throws EncFSCorruptDataException
+	 *             Corrupt data detected (checksum error)
+	 * @throws EncFSInvalidConfigException
+	 *             Configuration file format not recognized
+	 * @throws EncFSUnsupportedException
+	 *             Unsupported EncFS version or options
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public EncFSVolume(String rootPath, String password,
+			EncFSKeyCache keyCache) throws EncFSInvalidPasswordException,
+			EncFSInvalidConfigException, EncFSCorruptDataException,
+			EncFSUnsupportedException, IOException {
+		this.init(new EncFSLocalFileProvider(new File(rootPath)), password,
+				keyCache);
+	}
+
+	/**
+	 * Creates a new object representing an existing EncFS volume, looking up
+	 * the password-based key in the given cache
+	 * 
+	 * The password-based key is only derived if the cache doesn't have it yet,
+	 * and is added to the cache once it successfully unlocked the volume.
+	 * 
+	 * @param fileProvider
+	 *            File provider for access to files stored in non-local storage
+	 * @param password
+	 *            User supplied password to decrypt volume key
+	 * @param keyCache
+	 *            Cache of password-based keys
+	 * 
+	 * @throws EncFSInvalidPasswordException
+	 *             Given password is incorrect
+	 * @throws EncFSCorruptDataException
+	 *             Corrupt data detected (checksum error)
+	 * @throws EncFSInvalidConfigException
+	 *             Configuration file format not recognized
+	 * @throws EncFSUnsupportedException
+	 *             Unsupported EncFS version or options
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public EncFSVolume(EncFSFileProvider fileProvider, String password,
+			EncFSKeyCache keyCache) throws EncFSInvalidPasswordException,
+			EncFSInvalidConfigException, EncFSCorruptDataException,
+			EncFSUnsupportedException, IOException {
+		this.init(fileProvider, password, keyCache);
+	}
+
 	/**
 	 * Creates a new object representing an existing EncFS volume
 	 * 
@@ -265,6 +382,30 @@ public class EncFSVolume {
 		this.init(fileProvider, config, passwordKey);
 	}
 
+	// Read configuration, look up or derive password key and initialize volume
+	private void init(EncFSFileProvider fileProvider, String password,
+			EncFSKeyCache keyCache) throws EncFSUnsupportedException,
+			EncFSInvalidConfigException, EncFSCorruptDataException,
+			EncFSInvalidPasswordException, IOException {
+		EncFSConfig config = EncFSConfigParser.parseConfig(fileProvider,
+				CONFIG_FILE_NAME);
+
+		byte[] passwordKey = keyCache.get(config, password);
+		if (passwordKey != null) {
+			try {
+				this.init(fileProvider, config, passwordKey);
+				return;
+			} catch (EncFSInvalidPasswordException e) {
+				// Stale entry, derive the key again below
+				keyCache.evict(config);
+			}
+		}
+
+		passwordKey = EncFSCrypto.derivePasswordKey(config, password);
+		this.init(fileProvider, config, passwordKey);
+		keyCache.put(config, password, passwordKey);
+	}
+
 	// Derive password key and initialize volume
 	private void init(EncFSFileProvider fileProvider, EncFSConfig config,
 			String password) throws EncFSUnsupportedException,
@@ -312,6 +453,16 @@ public class EncFSVolume {
 		this.key = EncFSCrypto
 				.newKey(Arrays.copyOfRange(keyData, 0, keyLength));
 
+		// Precompute HMAC state for IV derivation, falling back to the Mac
+		byte[] encodedKey = this.key.getEncoded();
+		if (encodedKey != null) {
+			try {
+				this.ivHmac = new EncFSHmacSha1(encodedKey);
+			} catch (EncFSUnsupportedException e) {
+				this.ivHmac = null;
+			}
+		}
+
 		// Copy IV data
 		int ivLength = keyData.length - keyLength;
 		if (ivLength != IV_LENGTH) {
@@ -320,17 +471,49 @@ public class EncFSVolume {
 		this.iv = Arrays.copyOfRange(keyData, keyLength, keyLength + ivLength);
 
 		// Create volume MAC
+		this.mac = new ThreadLocal<Mac>() {
+			@Override
+			protected Mac initialValue() {
+				try {
+					return EncFSCrypto.newMac(key);
+				} catch (InvalidKeyException e) {
+					throw new IllegalStateException(e);
+				} catch (EncFSUnsupportedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
 		try {
-			this.mac = EncFSCrypto.newMac(this.key);
+			this.mac.set(EncFSCrypto.newMac(this.key));
 		} catch (InvalidKeyException e) {
 			throw new EncFSInvalidConfigException(e);
 		}
 
 		// Create stream cipher
-		this.streamCipher = EncFSCrypto.newStreamCipher();
+		this.streamCipher = new ThreadLocal<Cipher>() {
+			@Override
+			protected Cipher initialValue() {
+				try {
+					return EncFSCrypto.newStreamCipher();
+				} catch (EncFSUnsupportedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		this.streamCipher.set(EncFSCrypto.newStreamCipher());
 
 		// Create block cipher
-		this.blockCipher = EncFSCrypto.newBlockCipher();
+		this.blockCipher = new ThreadLocal<Cipher>() {
+			@Override
+			protected Cipher initialValue() {
+				try {
+					return EncFSCrypto.newBlockCipher();
+				} catch (EncFSUnsupportedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		this.blockCipher.set(EncFSCrypto.newBlockCipher());
 
 		rootDir = getFile(ROOT_PATH);
 	}
@@ -453,6 +636,11 @@ public class EncFSVolume {
 		return iv;
 	}
 
+	// Returns the precomputed IV HMAC state of the volume key, or null
+	EncFSHmacSha1 getIvHmac() {
+		return ivHmac;
+	}
+
 	/**
 	 * Returns the password based key/IV data for this volume
 	 * 
@@ -465,28 +653,37 @@ public class EncFSVolume {
 	/**
 	 * Returns the MAC object used for checksum verification
 	 * 
+	 * The returned object belongs to the calling thread and must not be handed
+	 * to other threads.
+	 * 
 	 * @return Volume MAC for checksum verification
 	 */
 	public Mac getMac() {
-		return mac;
+		return mac.get();
 	}
 
 	/**
 	 * Returns the stream cipher instance for stream encryption/decryption
 	 * 
+	 * The returned object belongs to the calling thread and must not be handed
+	 * to other threads.
+	 * 
 	 * @return Stream cipher instance for stream encryption/decryption
 	 */
 	public Cipher getStreamCipher() {
-		return streamCipher;
+		return streamCipher.get();
 	}
 
 	/**
 	 * Returns the block cipher instance for block encryption/decryption
 	 * 
+	 * The returned object belongs to the calling thread and must not be handed
+	 * to other threads.
+	 * 
 	 * @return Block cipher instance for block encryption/decryption
 	 */
 	public Cipher getBlockCipher() {
-		return blockCipher;
+		return blockCipher.get();
 	}
 
 	/**
@@ -507,6 +704,41 @@ public class EncFSVolume {
 		return fileProvider;
 	}
 
+	/*
+	 * Returns whether the file provider supports the given optional provider
+	 * interface. Caching providers implement all of them but only forward
+	 * those their underlying provider supports.
+	 */
+	boolean providerSupports(Class<? extends EncFSFileProvider> capability) {
+		if (fileProvider instanceof EncFSCachingFileProvider) {
+			return ((EncFSCachingFileProvider) fileProvider)
+					.supports(capability);
+		}
+		return capability.isInstance(fileProvider);
+	}
+
+	/**
+	 * Sets the maximum number of file names cached by this volume
+	 * 
+	 * Encrypting and decrypting names costs several cipher and MAC operations
+	 * per path component, so recently used names are cached in both
+	 * directions. Changing the size drops all cached names.
+	 * 
+	 * @param size
+	 *            Maximum number of cached names, 0 to disable the cache
+	 */
+	public void setNameCacheSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative cache size");
+		}
+		this.nameCache = (size == 0) ? null : new EncFSNameCache(size);
+	}
+
+	// Returns the name cache for this volume, null if disabled
+	EncFSNameCache getNameCache() {
+		return nameCache;
+	}
+
 	/**
 	 * Get an EncFSFile object representing the provided filename given the
 	 * volume path of its parent directory
@@ -606,7 +838,8 @@ public class EncFSVolume {
 		long headerLength = config.getBlockMACBytes()
 				+ config.getBlockMACRandBytes();
 		if (headerLength > 0) {
-			long blockLength = config.getBlockSize() + headerLength;
+			// Block headers are stored within each encrypted block
+			long blockLength = config.getBlockSize();
 
 			// Calculate number of blocks
 			long numBlocks = ((size - 1) / blockLength) + 1;
@@ -638,7 +871,8 @@ public class EncFSVolume {
 		long headerLength = config.getBlockMACBytes()
 				+ config.getBlockMACRandBytes();
 		if (headerLength > 0) {
-			long blockLength = config.getBlockSize() + headerLength;
+			// Each encrypted block holds blockSize - headerLength data bytes
+			long blockLength = config.getBlockSize() - headerLength;
 
 			// Calculate number of blocks
 			long numBlocks = ((size - 1) / blockLength) + 1;
@@ -703,6 +937,11 @@ public class EncFSVolume {
 			EncFSConfig config, String password)
 			throws EncFSInvalidPasswordException, EncFSInvalidConfigException,
 			EncFSCorruptDataException, EncFSUnsupportedException, IOException {
+		if (config.isExternalIVChaining()) {
+			throw new EncFSUnsupportedException(
+					"External IV chaining is not supported");
+		}
+
 		SecureRandom random = new SecureRandom();
 
 		// Create a random volume key + IV pair
@@ -959,6 +1198,162 @@ public class EncFSVolume {
 		return deletePath(filePath, recursive, null);
 	}
 
+	/**
+	 * Recursively deletes the given file or directory in the EncFS volume,
+	 * deleting files on the given executor
+	 * 
+	 * The directory tree is listed only once and works on encrypted paths, so
+	 * no file names are decrypted and no progress is reported. The files in
+	 * each directory are deleted concurrently, followed by the directories
+	 * themselves once all files are gone. File providers implementing
+	 * EncFSBulkDeleteFileProvider are passed whole batches of paths.
+	 * 
+	 * @param filePath
+	 *            Absolute volume path of the file/directory to delete
+	 * @param executor
+	 *            Executor to delete files on, or null to delete them on the
+	 *            calling thread
+	 * 
+	 * @return true if deletion succeeds, false otherwise
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             Filename encoding failed
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public boolean deletePath(String filePath, ExecutorService executor)
+			throws EncFSCorruptDataException, IOException {
+		validateAbsoluteFileName(filePath, "filePath");
+
+		String encFilePath = EncFSCrypto.encodePath(this, filePath, ROOT_PATH);
+		if (!fileProvider.exists(encFilePath)) {
+			throw new FileNotFoundException("Path '" + filePath
+					+ "' doesn't exist!");
+		}
+
+		boolean result;
+		if (fileProvider.isDirectory(encFilePath)) {
+			List<String> dirPaths = new ArrayList<String>();
+			List<Future<Boolean>> fileResults = new ArrayList<Future<Boolean>>();
+			result = scheduleDeletes(encFilePath, dirPaths, fileResults,
+					executor);
+
+			for (Future<Boolean> fileResult : fileResults) {
+				try {
+					if (!fileResult.get()) {
+						result = false;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					throw new IOException(e.getCause());
+				}
+			}
+
+			// Directories can only go once all files are gone
+			if (result) {
+				result = deleteEncryptedPaths(dirPaths);
+			}
+		} else {
+			result = fileProvider.delete(encFilePath);
+		}
+
+		return result;
+	}
+
+	/*
+	 * List the given encrypted directory tree, deleting the files of each
+	 * directory on the executor (or right away without one) and adding the
+	 * directories to dirPaths with subdirectories before their parents. Bulk
+	 * capable providers get one batch per directory, otherwise the files are
+	 * split into chunks so large directories are deleted in parallel too.
+	 */
+	private boolean scheduleDeletes(String encDirPath, List<String> dirPaths,
+			List<Future<Boolean>> fileResults, ExecutorService executor)
+			throws IOException {
+		boolean result = true;
+		boolean isRoot = encDirPath.equals(ROOT_PATH);
+		List<String> filePaths = new ArrayList<String>();
+
+		for (EncFSFileInfo fileInfo : fileProvider.listFiles(encDirPath)) {
+			if (isRoot && isConfigFileName(fileInfo.getName())) {
+				// Never delete the volume configuration
+				continue;
+			}
+
+			if (fileInfo.isDirectory()) {
+				if (!scheduleDeletes(fileInfo.getPath(), dirPaths, fileResults,
+						executor)) {
+					result = false;
+				}
+			} else {
+				filePaths.add(fileInfo.getPath());
+			}
+		}
+
+		if (!filePaths.isEmpty()) {
+			if (executor == null) {
+				if (!deleteEncryptedPaths(filePaths)) {
+					result = false;
+				}
+			} else {
+				// Bulk deletes take a whole directory at once
+				int chunkSize = DELETE_CHUNK_SIZE;
+				if (providerSupports(EncFSBulkDeleteFileProvider.class)) {
+					chunkSize = filePaths.size();
+				}
+				for (int i = 0; i < filePaths.size(); i += chunkSize) {
+					final List<String> chunk = filePaths.subList(i,
+							Math.min(i + chunkSize, filePaths.size()));
+					fileResults.add(executor.submit(new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return deleteEncryptedPaths(chunk);
+						}
+					}));
+				}
+			}
+		}
+
+		// The root directory holds the configuration, so it stays
+		if (!isRoot) {
+			dirPaths.add(encDirPath);
+		}
+		return result;
+	}
+
+	// Delete the given encrypted paths in order, in one go if supported
+	private boolean deleteEncryptedPaths(List<String> encPaths)
+			throws IOException {
+		if (providerSupports(EncFSBulkDeleteFileProvider.class)) {
+			return ((EncFSBulkDeleteFileProvider) fileProvider)
+					.deleteAll(encPaths);
+		}
+
+		for (String encPath : encPaths) {
+			if (!fileProvider.delete(encPath)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Check whether the given name is that of a volume configuration file
+	private static boolean isConfigFileName(String fileName) {
+		if (fileName.equals(CONFIG_FILE_NAME)) {
+			return true;
+		}
+		for (String oldConfigFileName : OLD_CONFIG_FILE_NAMES) {
+			if (fileName.equals(oldConfigFileName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	// Helper function to perform copy/move path operations
 	private boolean copyOrMovePath(String srcPath, String dstPath,
 			PathOperation op, EncFSProgressListener progressListener)
@@ -1080,6 +1475,167 @@ public class EncFSVolume {
 		}
 	}
 
+	// Helper function to perform copy/move path operations on an executor
+	private boolean copyOrMovePath(String srcPath, String dstPath,
+			PathOperation op, EncFSProgressListener progressListener,
+			ExecutorService executor) throws EncFSCorruptDataException,
+			IOException {
+		validateAbsoluteFileName(srcPath, "srcPath");
+		validateAbsoluteFileName(dstPath, "dstPath");
+
+		if (!pathExists(srcPath)) {
+			throw new FileNotFoundException("Source path '" + srcPath
+					+ "' doesn't exist!");
+		}
+
+		if (srcPath.equals(dstPath)) {
+			throw new IOException("Can't copy/move onto the same path!");
+		}
+
+		String encSrcPath = EncFSCrypto.encodePath(this, srcPath, ROOT_PATH);
+		if (!fileProvider.isDirectory(encSrcPath)
+				|| (!getConfig().isChainedNameIV() && op == PathOperation.MOVE)) {
+			// Single file operation, nothing to parallelize
+			return copyOrMovePath(srcPath, dstPath, op, progressListener);
+		}
+
+		PendingDirOperation pending = scheduleDirOperation(srcPath, dstPath,
+				op, progressListener, executor);
+
+		// Let everything finish before looking at results or rolling back
+		awaitDirOperation(pending);
+		return finishDirOperation(pending, op);
+	}
+
+	/*
+	 * Create the destination directory for a directory copy/move and submit
+	 * the operations for its contents to the executor. Subdirectories are
+	 * walked on the calling thread since their contents can't be processed
+	 * before they're created.
+	 */
+	private PendingDirOperation scheduleDirOperation(String srcPath,
+			String dstPath, final PathOperation op,
+			final EncFSProgressListener progressListener,
+			ExecutorService executor) throws EncFSCorruptDataException,
+			IOException {
+		EncFSFile thisDir = this.getFile(srcPath);
+		if (pathExists(dstPath)) {
+			if (!getFile(dstPath).isDirectory()) {
+				throw new IOException(
+						"Can't copy/move a directory onto a file!");
+			}
+			// dstPath is an existing dir, this is a copy/move into it
+			dstPath = combinePath(dstPath, thisDir);
+		}
+
+		PendingDirOperation pending = new PendingDirOperation(
+				thisDir.getEncryptedPath(), EncFSCrypto.encodePath(this,
+						dstPath, ROOT_PATH), this.makeDir(dstPath));
+		reportProcessed(progressListener, dstPath);
+
+		if (pending.created) {
+			for (EncFSFile subFile : this.listFilesForPath(srcPath)) {
+				final String subSrcPath = subFile.getPath();
+				final String subDstPath = combinePath(dstPath, subFile);
+
+				if (subFile.isDirectory()
+						&& (getConfig().isChainedNameIV() || op == PathOperation.COPY)) {
+					pending.subDirs.add(scheduleDirOperation(subSrcPath,
+							subDstPath, op, progressListener, executor));
+				} else {
+					pending.files.add(executor.submit(new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							boolean result = copyOrMovePath(subSrcPath,
+									subDstPath, op, null);
+							reportProcessed(progressListener, subDstPath);
+							return result;
+						}
+					}));
+				}
+			}
+		}
+
+		return pending;
+	}
+
+	// Wait for all operations submitted for the given directory tree
+	private static void awaitDirOperation(PendingDirOperation pending)
+			throws IOException {
+		for (PendingDirOperation subDir : pending.subDirs) {
+			awaitDirOperation(subDir);
+		}
+
+		for (Future<Boolean> file : pending.files) {
+			try {
+				file.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				// Reported by finishDirOperation()
+			}
+		}
+	}
+
+	/*
+	 * Collect the results of a finished directory copy/move, deleting the
+	 * source directory for successful moves and attempting to roll back the
+	 * destination directory on failure.
+	 */
+	private boolean finishDirOperation(PendingDirOperation pending,
+			PathOperation op) throws EncFSCorruptDataException, IOException {
+		boolean result = pending.created;
+
+		for (PendingDirOperation subDir : pending.subDirs) {
+			if (!finishDirOperation(subDir, op)) {
+				result = false;
+			}
+		}
+
+		for (Future<Boolean> file : pending.files) {
+			try {
+				if (!file.get()) {
+					result = false;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof EncFSCorruptDataException) {
+					throw (EncFSCorruptDataException) e.getCause();
+				}
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+		}
+
+		if (result) {
+			// We only delete source directories for move, not copy
+			if (op == PathOperation.MOVE) {
+				result = fileProvider.delete(pending.encSrcPath);
+			}
+		} else {
+			// Attempt failure rollback
+			fileProvider.delete(pending.encDstPath);
+		}
+
+		return result;
+	}
+
+	// Report a processed file to the progress listener from any thread
+	private static void reportProcessed(EncFSProgressListener progressListener,
+			String path) {
+		if (progressListener != null) {
+			synchronized (progressListener) {
+				progressListener.setCurrentFile(path);
+				progressListener
+						.postEvent(EncFSProgressListener.FILE_PROCESS_EVENT);
+			}
+		}
+	}
+
 	/**
 	 * Copies the source file or directory to the target file or directory
 	 * 
@@ -1114,6 +1670,49 @@ public class EncFSVolume {
 		return result;
 	}
 
+	/**
+	 * Copies the source file or directory to the target file or directory,
+	 * copying files on the given executor
+	 * 
+	 * Directories are created on the calling thread, while the files under
+	 * them are copied concurrently. As with copyPath(), a destination
+	 * directory whose contents failed to copy is removed again. Progress
+	 * events may be posted from the executor's threads, but never from two
+	 * threads at once.
+	 * 
+	 * @param srcPath
+	 *            Absolute volume path of the source file or directory
+	 * @param dstPath
+	 *            Absolute volume path of the target file or directory
+	 * @param progressListener
+	 *            Progress listener for getting individual file updates
+	 * @param executor
+	 *            Executor to copy files on
+	 * 
+	 * @return true if copy succeeds, false otherwise
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             Filename encoding failed
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public boolean copyPath(String srcPath, String dstPath,
+			EncFSProgressListener progressListener, ExecutorService executor)
+			throws EncFSCorruptDataException, IOException {
+		if (progressListener != null) {
+			progressListener.setNumFiles(countFiles(getFile(srcPath)) + 1);
+		}
+
+		boolean result = copyOrMovePath(srcPath, dstPath, PathOperation.COPY,
+				progressListener, executor);
+
+		if (progressListener != null) {
+			progressListener.postEvent(EncFSProgressListener.OP_COMPLETE_EVENT);
+		}
+
+		return result;
+	}
+
 	/**
 	 * Copies the source file or directory to the target file or directory
 	 * 
@@ -1168,6 +1767,49 @@ public class EncFSVolume {
 		return result;
 	}
 
+	/**
+	 * Moves a file / directory, moving files on the given executor
+	 * 
+	 * This only makes a difference for directories in volumes using chained
+	 * name IVs, where every file below the directory has to be moved
+	 * individually. Directories are created on the calling thread while the
+	 * files are moved concurrently, and source directories are deleted once
+	 * all their contents were moved. As with movePath(), a destination
+	 * directory whose contents failed to move is removed again.
+	 * 
+	 * @param srcPath
+	 *            Absolute volume path of the file or directory to move
+	 * @param dstPath
+	 *            Absolute volume path of the destination file or directory
+	 * @param progressListener
+	 *            Progress listener for getting individual file updates
+	 * @param executor
+	 *            Executor to move files on
+	 * 
+	 * @return true if the move succeeds, false otherwise
+	 * 
+	 * @throws EncFSCorruptDataException
+	 *             Filename encoding failed
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public boolean movePath(String srcPath, String dstPath,
+			EncFSProgressListener progressListener, ExecutorService executor)
+			throws EncFSCorruptDataException, IOException {
+		if (progressListener != null) {
+			progressListener.setNumFiles(countFiles(getFile(srcPath)) + 1);
+		}
+
+		boolean result = copyOrMovePath(srcPath, dstPath, PathOperation.MOVE,
+				progressListener, executor);
+
+		if (progressListener != null) {
+			progressListener.postEvent(EncFSProgressListener.OP_COMPLETE_EVENT);
+		}
+
+		return result;
+	}
+
 	/**
 	 * Moves a file / directory
 	 * 
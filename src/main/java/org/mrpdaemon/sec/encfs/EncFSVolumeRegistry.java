@@ -0,0 +1,454 @@
+/*
+ * EncFS Java Library
+ * Copyright (C) 2011 Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+package org.mrpdaemon.sec.encfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry keeping EncFS volumes open for repeated use
+ * 
+ * Opening a volume parses its configuration and builds its keys and ciphers,
+ * which dominates the cost of short operations on many different volumes.
+ * Volumes are registered under an identifier along with a way to open them,
+ * opened lazily by acquire() and kept open afterwards. The least recently used
+ * volumes are closed when more than the configured number of volumes are
+ * open, and volumes that haven't been used for the idle timeout are closed by
+ * evictIdle(). Volumes are reference counted, so a volume is never evicted
+ * while a handle to it is open.
+ * 
+ * All methods can be called from multiple threads. Different volumes are
+ * opened concurrently.
+ */
+public class EncFSVolumeRegistry {
+
+	/**
+	 * Interface for opening a registered volume
+	 */
+	public interface VolumeOpener {
+
+		/**
+		 * Open the volume
+		 * 
+		 * @return Newly opened volume
+		 * 
+		 * @throws EncFSInvalidPasswordException
+		 *             Given password is incorrect
+		 * @throws EncFSCorruptDataException
+		 *             Corrupt data detected (checksum error)
+		 * @throws EncFSInvalidConfigException
+		 *             Configuration file format not recognized
+		 * @throws EncFSUnsupportedException
+		 *             Unsupported EncFS version or options
+		 * @throws IOException
+		 *             File provider returned I/O error
+		 */
+		public EncFSVolume open() throws EncFSInvalidPasswordException,
+				EncFSInvalidConfigException, EncFSCorruptDataException,
+				EncFSUnsupportedException, IOException;
+	}
+
+	/**
+	 * Handle to an acquired volume, which stays open until the handle is
+	 * closed
+	 */
+	public final class Handle implements Closeable {
+		private final Entry entry;
+		private final EncFSVolume volume;
+		private boolean closed;
+
+		private Handle(Entry entry, EncFSVolume volume) {
+			this.entry = entry;
+			this.volume = volume;
+		}
+
+		/**
+		 * Returns the acquired volume
+		 * 
+		 * @return Volume object
+		 */
+		public EncFSVolume getVolume() {
+			return volume;
+		}
+
+		/**
+		 * Release the volume, allowing the registry to evict it
+		 */
+		public void close() {
+			synchronized (EncFSVolumeRegistry.this) {
+				if (!closed) {
+					closed = true;
+					entry.refCount--;
+					entry.lastUsed = System.nanoTime();
+					evictExcess();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Usage statistics of a registered volume
+	 */
+	public static final class Stats {
+		private final long hits;
+		private final long misses;
+		private final long evictions;
+		private final boolean open;
+
+		private Stats(Entry entry) {
+			this.hits = entry.hits;
+			this.misses = entry.misses;
+			this.evictions = entry.evictions;
+			this.open = entry.volume != null;
+		}
+
+		/**
+		 * Returns the number of acquisitions that found the volume open
+		 * 
+		 * @return Number of hits
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * Returns the number of acquisitions that had to open the volume
+		 * 
+		 * @return Number of misses
+		 */
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * Returns the number of times the volume was evicted
+		 * 
+		 * @return Number of evictions
+		 */
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/**
+		 * Checks whether the volume is currently open
+		 * 
+		 * @return true if the volume is open, false otherwise
+		 */
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public String toString() {
+			return "Stats [hits=" + hits + ", misses=" + misses
+					+ ", evictions=" + evictions + ", open=" + open + "]";
+		}
+	}
+
+	// State of a registered volume, guarded by the registry lock
+	private static class Entry {
+		final VolumeOpener opener;
+
+		// Password-based key the opener uses, zeroed on unregister. Null if
+		// registered with a custom opener.
+		final byte[] passwordKey;
+
+		// Open volume, null if closed. Opening happens under the entry lock.
+		volatile EncFSVolume volume;
+
+		int refCount;
+		long lastUsed;
+		long hits;
+		long misses;
+		long evictions;
+
+		Entry(VolumeOpener opener, byte[] passwordKey) {
+			this.opener = opener;
+			this.passwordKey = passwordKey;
+		}
+	}
+
+	// All registered volumes
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	// Open volumes in least recently used order
+	private final LinkedHashMap<String, Entry> openEntries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	// Maximum number of volumes to keep open
+	private final int maxOpenVolumes;
+
+	// Time after which unused volumes are evicted
+	private final long idleTimeoutNanos;
+
+	/**
+	 * Create a new volume registry
+	 * 
+	 * @param maxOpenVolumes
+	 *            Maximum number of volumes to keep open. More volumes stay
+	 *            open if they are all in use.
+	 * @param idleTimeout
+	 *            Time after which unused volumes are evicted
+	 * @param unit
+	 *            Unit of idleTimeout
+	 */
+	public EncFSVolumeRegistry(int maxOpenVolumes, long idleTimeout,
+			TimeUnit unit) {
+		if (maxOpenVolumes < 1) {
+			throw new IllegalArgumentException(
+					"Maximum number of open volumes must be positive");
+		}
+		this.maxOpenVolumes = maxOpenVolumes;
+		this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+	}
+
+	/**
+	 * Register a volume
+	 * 
+	 * @param volumeId
+	 *            Identifier of the volume
+	 * @param opener
+	 *            Opener to call whenever the volume needs to be opened
+	 * 
+	 * @throws IllegalArgumentException
+	 *             A volume with the given identifier is already registered
+	 */
+	public void register(String volumeId, VolumeOpener opener) {
+		register(volumeId, opener, null);
+	}
+
+	/**
+	 * Register a volume opened with a password-based key
+	 * 
+	 * Using the password-based key (see EncFSVolume.getPasswordKey()) avoids
+	 * deriving it from the password whenever the volume is reopened. The
+	 * registry keeps a copy of the key until the volume is unregistered.
+	 * 
+	 * @param volumeId
+	 *            Identifier of the volume
+	 * @param fileProvider
+	 *            File provider for access to the volume
+	 * @param passwordKey
+	 *            Password-based key/IV data of the volume
+	 * 
+	 * @throws IllegalArgumentException
+	 *             A volume with the given identifier is already registered
+	 */
+	public void register(String volumeId,
+			final EncFSFileProvider fileProvider, byte[] passwordKey) {
+		final byte[] key = passwordKey.clone();
+		register(volumeId, new VolumeOpener() {
+			public EncFSVolume open() throws EncFSInvalidPasswordException,
+					EncFSInvalidConfigException, EncFSCorruptDataException,
+					EncFSUnsupportedException, IOException {
+				// The volume keeps the array, give it one we won't zero
+				return new EncFSVolume(fileProvider, key.clone());
+			}
+		}, key);
+	}
+
+	// Register a volume, along with the password-based key its opener uses
+	private synchronized void register(String volumeId, VolumeOpener opener,
+			byte[] passwordKey) {
+		if (entries.containsKey(volumeId)) {
+			throw new IllegalArgumentException("Volume '" + volumeId
+					+ "' is already registered");
+		}
+		entries.put(volumeId, new Entry(opener, passwordKey));
+	}
+
+	/**
+	 * Unregister a volume
+	 * 
+	 * Handles that are still open keep working, but the volume won't be
+	 * opened again. The registry's copy of the password-based key, if any, is
+	 * zeroed.
+	 * 
+	 * @param volumeId
+	 *            Identifier of the volume
+	 * 
+	 * @return true if the volume was registered, false otherwise
+	 */
+	public synchronized boolean unregister(String volumeId) {
+		Entry entry = entries.remove(volumeId);
+		if (entry == null) {
+			return false;
+		}
+		if (openEntries.remove(volumeId) != null) {
+			entry.volume = null;
+		}
+		if (entry.passwordKey != null) {
+			// Wait for an opener that is already running
+			synchronized (entry) {
+				Arrays.fill(entry.passwordKey, (byte) 0);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Acquire a registered volume, opening it if necessary
+	 * 
+	 * The returned handle must be closed once the volume is no longer needed.
+	 * 
+	 * @param volumeId
+	 *            Identifier of the volume
+	 * 
+	 * @return Handle to the open volume
+	 * 
+	 * @throws IllegalArgumentException
+	 *             No volume is registered with the given identifier
+	 * @throws EncFSInvalidPasswordException
+	 *             Given password is incorrect
+	 * @throws EncFSCorruptDataException
+	 *             Corrupt data detected (checksum error)
+	 * @throws EncFSInvalidConfigException
+	 *             Configuration file format not recognized
+	 * @throws EncFSUnsupportedException
+	 *             Unsupported EncFS version or options
+	 * @throws IOException
+	 *             File provider returned I/O error
+	 */
+	public Handle acquire(String volumeId)
+			throws EncFSInvalidPasswordException, EncFSInvalidConfigException,
+			EncFSCorruptDataException, EncFSUnsupportedException, IOException {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(volumeId);
+			if (entry == null) {
+				throw new IllegalArgumentException("Volume '" + volumeId
+						+ "' is not registered");
+			}
+			// Referenced entries are never evicted
+			entry.refCount++;
+		}
+
+		// Open outside the registry lock so other volumes aren't blocked
+		EncFSVolume volume;
+		boolean opened = false;
+		boolean success = false;
+		try {
+			synchronized (entry) {
+				volume = entry.volume;
+				if (volume == null) {
+					volume = entry.opener.open();
+					entry.volume = volume;
+					opened = true;
+				}
+			}
+			success = true;
+		} finally {
+			if (!success) {
+				release(entry);
+			}
+		}
+
+		synchronized (this) {
+			if (opened) {
+				entry.misses++;
+			} else {
+				entry.hits++;
+			}
+			entry.lastUsed = System.nanoTime();
+			if (entries.get(volumeId) == entry) {
+				openEntries.put(volumeId, entry);
+			}
+			evictIdle(entry.lastUsed);
+			evictExcess();
+		}
+
+		return new Handle(entry, volume);
+	}
+
+	/**
+	 * Evict all unused volumes that have been idle for longer than the idle
+	 * timeout
+	 * 
+	 * This is also done on every acquire(), but should be called periodically
+	 * to release idle volumes when the registry isn't used.
+	 * 
+	 * @return Number of evicted volumes
+	 */
+	public synchronized int evictIdle() {
+		return evictIdle(System.nanoTime());
+	}
+
+	/**
+	 * Returns usage statistics for a registered volume
+	 * 
+	 * @param volumeId
+	 *            Identifier of the volume
+	 * 
+	 * @return Statistics of the volume, null if not registered
+	 */
+	public synchronized Stats getStats(String volumeId) {
+		Entry entry = entries.get(volumeId);
+		return entry == null ? null : new Stats(entry);
+	}
+
+	/**
+	 * Returns the number of currently open volumes
+	 * 
+	 * @return Number of open volumes
+	 */
+	public synchronized int getOpenCount() {
+		return openEntries.size();
+	}
+
+	// Drop a reference taken by a failed acquire()
+	private synchronized void release(Entry entry) {
+		entry.refCount--;
+	}
+
+	// Evict unused volumes idle since before the given time
+	private int evictIdle(long now) {
+		int count = 0;
+		Iterator<Entry> it = openEntries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.refCount == 0 && now - entry.lastUsed > idleTimeoutNanos) {
+				evict(entry);
+				it.remove();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// Evict least recently used unused volumes until the limit is met
+	private void evictExcess() {
+		Iterator<Entry> it = openEntries.values().iterator();
+		while (openEntries.size() > maxOpenVolumes && it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.refCount == 0) {
+				evict(entry);
+				it.remove();
+			}
+		}
+	}
+
+	// Close the volume of the given entry
+	private static void evict(Entry entry) {
+		entry.volume = null;
+		entry.evictions++;
+	}
+}
@@ -17,6 +17,8 @@ package org.mrpdaemon.sec.encfs;
 
 import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
+import java.util.Arrays;
+import java.util.Random;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -45,4 +47,38 @@ public class EncFSBase64Test {
 
 		Assert.assertArrayEquals(in, in1);
 	}
+
+	@Test
+	public void testNameBase64() throws EncFSCorruptDataException {
+		Random random = new Random(42);
+		for (int len = 0; len < 100; len++) {
+			byte[] data = new byte[len];
+			random.nextBytes(data);
+
+			// Must match the generic EncFS Base64 implementation
+			String encoded = EncFSNameBase64.encode(data, 0, len);
+			Assert.assertEquals(new String(EncFSBase64.encodeEncfs(data)),
+					encoded);
+			Assert.assertEquals(EncFSNameBase64.encodedLength(len),
+					encoded.length());
+			Assert.assertArrayEquals(data, EncFSNameBase64.decode(encoded));
+
+			// Caller supplied buffers with offsets
+			char[] chars = new char[encoded.length() + 3];
+			Assert.assertEquals(encoded.length(),
+					EncFSNameBase64.encode(data, 0, len, chars, 3));
+			byte[] bytes = new byte[len + 5];
+			Assert.assertEquals(len, EncFSNameBase64.decode(new String(chars,
+					3, encoded.length()), bytes, 5));
+			Assert.assertArrayEquals(data, Arrays.copyOfRange(bytes, 5,
+					len + 5));
+		}
+
+		try {
+			EncFSNameBase64.decode(".encfs6.xml");
+			Assert.fail();
+		} catch (EncFSCorruptDataException e) {
+			// Expected
+		}
+	}
 }
@@ -17,11 +17,15 @@ package org.mrpdaemon.sec.encfs;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -79,4 +83,157 @@ public class EncFSCryptoTest {
 		Assert.assertArrayEquals(orig, b2);
 	}
 
+	@Test
+	public void testBufferEncodeDecode() throws EncFSInvalidPasswordException,
+			EncFSInvalidConfigException, EncFSCorruptDataException,
+			EncFSUnsupportedException, EncFSChecksumException, IOException,
+			InvalidAlgorithmParameterException, IllegalBlockSizeException,
+			BadPaddingException, ShortBufferException {
+		File encFSDir = new File("test/encfs_samples/boxcryptor_1");
+		Assert.assertTrue(encFSDir.exists());
+
+		String password = "test";
+		EncFSVolume volume = new EncFSVolume(encFSDir.getAbsolutePath(),
+				password);
+
+		long ivSeed = 0x123456789abcdef0L;
+		byte[] ivSeedBytes = EncFSUtil.longToByteArray(ivSeed);
+
+		byte[] orig = new byte[64];
+		for (int i = 0; i < orig.length; i++) {
+			orig[i] = (byte) (i * 7);
+		}
+
+		// Stream mode, in place with an offset
+		byte[] streamEnc = EncFSCrypto.streamEncode(volume, ivSeedBytes,
+				Arrays.copyOf(orig, 13));
+		byte[] buf = new byte[20];
+		System.arraycopy(orig, 0, buf, 4, 13);
+		Assert.assertEquals(13,
+				EncFSCrypto.streamEncode(volume, ivSeed, buf, 4, 13, buf, 4));
+		Assert.assertArrayEquals(streamEnc, Arrays.copyOfRange(buf, 4, 17));
+		Assert.assertEquals(13,
+				EncFSCrypto.streamDecode(volume, ivSeed, buf, 4, 13, buf, 4));
+		Assert.assertArrayEquals(Arrays.copyOf(orig, 13),
+				Arrays.copyOfRange(buf, 4, 17));
+
+		// Block mode into a separate buffer
+		byte[] blockEnc = EncFSCrypto.blockEncode(volume, ivSeedBytes,
+				Arrays.copyOf(orig, orig.length));
+		byte[] encBuf = new byte[orig.length];
+		Assert.assertEquals(orig.length, EncFSCrypto.blockEncode(volume,
+				ivSeed, orig, 0, orig.length, encBuf, 0));
+		Assert.assertArrayEquals(blockEnc, encBuf);
+		byte[] decBuf = new byte[orig.length];
+		Assert.assertEquals(orig.length, EncFSCrypto.blockDecode(volume,
+				ivSeed, encBuf, 0, encBuf.length, decBuf, 0));
+		Assert.assertArrayEquals(orig, decBuf);
+
+		// 64-bit MAC as a long matches the byte array version
+		byte[] mac = EncFSCrypto.mac64(volume.getMac(), orig, 8);
+		long macLong = EncFSCrypto.mac64AsLong(volume.getMac(), orig, 8,
+				orig.length - 8);
+		Assert.assertEquals(EncFSUtil.byteArrayToLong(mac), macLong);
+	}
+
+	@Test
+	public void testHmacSha1() throws Exception {
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 7);
+		}
+
+		// Precomputed state matches javax.crypto.Mac, including for keys
+		// longer than the SHA-1 block size
+		int[] keyLengths = { 16, 24, 32, 64, 100 };
+		for (int keyLength : keyLengths) {
+			byte[] key = new byte[keyLength];
+			for (int i = 0; i < key.length; i++) {
+				key[i] = (byte) (i * 31 + keyLength);
+			}
+			Mac mac = Mac.getInstance("HmacSHA1");
+			mac.init(new SecretKeySpec(key, "HmacSHA1"));
+			EncFSHmacSha1 hmac = new EncFSHmacSha1(key);
+
+			for (int len = 0; len <= 80; len += 8) {
+				mac.update(data, 5, len);
+				byte[] expected = mac.doFinal();
+				byte[] actual = new byte[EncFSHmacSha1.LENGTH + 3];
+				hmac.mac(data, 5, len, actual, 3);
+				Assert.assertArrayEquals(expected,
+						Arrays.copyOfRange(actual, 3, actual.length));
+			}
+		}
+	}
+
+	@Test
+	public void testByteBufferEncodeDecode() throws Exception {
+		File encFSDir = new File("test/encfs_samples/boxcryptor_1");
+		Assert.assertTrue(encFSDir.exists());
+
+		String password = "test";
+		EncFSVolume volume = new EncFSVolume(encFSDir.getAbsolutePath(),
+				password);
+
+		long ivSeed = 0x0fedcba987654321L;
+		byte[] orig = new byte[160];
+		for (int i = 0; i < orig.length; i++) {
+			orig[i] = (byte) (i * 13);
+		}
+
+		// Stream mode from a heap buffer into a direct buffer
+		byte[] streamEnc = new byte[orig.length];
+		EncFSCrypto.streamEncode(volume, ivSeed, orig, 0, orig.length,
+				streamEnc, 0);
+		ByteBuffer in = ByteBuffer.wrap(orig);
+		ByteBuffer direct = ByteBuffer.allocateDirect(orig.length + 10);
+		direct.position(10);
+		Assert.assertEquals(orig.length,
+				EncFSCrypto.streamEncode(volume, ivSeed, in, direct));
+		Assert.assertFalse(in.hasRemaining());
+		Assert.assertEquals(direct.limit(), direct.position());
+		byte[] actual = new byte[orig.length];
+		direct.position(10);
+		direct.get(actual);
+		Assert.assertArrayEquals(streamEnc, actual);
+
+		// Stream decode in place on the direct buffer
+		direct.position(10);
+		ByteBuffer out = direct.duplicate();
+		Assert.assertEquals(orig.length,
+				EncFSCrypto.streamDecode(volume, ivSeed, direct, out));
+		out.position(10);
+		out.get(actual);
+		Assert.assertArrayEquals(orig, actual);
+
+		// Block mode between direct buffers
+		byte[] blockEnc = new byte[orig.length];
+		EncFSCrypto.blockEncode(volume, ivSeed, orig, 0, orig.length,
+				blockEnc, 0);
+		ByteBuffer plain = ByteBuffer.allocateDirect(orig.length);
+		plain.put(orig).flip();
+		ByteBuffer cipher = ByteBuffer.allocateDirect(orig.length);
+		Assert.assertEquals(orig.length,
+				EncFSCrypto.blockEncode(volume, ivSeed, plain, cipher));
+		cipher.flip();
+		cipher.get(actual);
+		Assert.assertArrayEquals(blockEnc, actual);
+		cipher.flip();
+		plain.clear();
+		Assert.assertEquals(orig.length,
+				EncFSCrypto.blockDecode(volume, ivSeed, cipher, plain));
+		plain.flip();
+		plain.get(actual);
+		Assert.assertArrayEquals(orig, actual);
+
+		// 64-bit MAC over a direct buffer matches the byte array version
+		plain.position(8);
+		Assert.assertArrayEquals(EncFSCrypto.mac64(volume.getMac(), orig, 8),
+				EncFSCrypto.mac64(volume.getMac(), plain));
+		Assert.assertFalse(plain.hasRemaining());
+		Assert.assertEquals(EncFSCrypto.mac64AsLong(volume.getMac(), orig, 8,
+				orig.length - 8), EncFSCrypto.mac64AsLong(volume.getMac(),
+				ByteBuffer.wrap(orig, 8, orig.length - 8)));
+	}
+
 }
@@ -1,13 +1,33 @@
 package org.mrpdaemon.sec.encfs;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NotDirectoryException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.xml.sax.SAXException;
 
 public class EncFSVolumeFileTest {
 
@@ -220,4 +240,1323 @@ public class EncFSVolumeFileTest {
 
 		EncFSVolumeTestCommon.testFileOperations(volume);
 	}
+
+	// Random access reads through a channel
+	@Test
+	public void testChannelRead() throws EncFSInvalidPasswordException,
+			EncFSInvalidConfigException, EncFSCorruptDataException,
+			EncFSUnsupportedException, IOException, EncFSChecksumException {
+		EncFSConfig config = new EncFSConfig();
+		config.setBlockMACBytes(8);
+		config.setBlockMACRandBytes(8);
+
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				fileProvider);
+
+		byte[] contents = new byte[5000];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) (i % 251);
+		}
+
+		EncFSFile file = volume.createFile("/random.bin");
+		OutputStream os = file.openOutputStream(contents.length);
+		try {
+			os.write(contents);
+		} finally {
+			os.close();
+		}
+
+		file = volume.getFile("/random.bin");
+		Assert.assertEquals(contents.length, file.getLength());
+
+		SeekableByteChannel channel = file.openChannel();
+		try {
+			Assert.assertEquals(contents.length, channel.size());
+
+			int[] positions = { 4990, 0, 1000, 1007, 2020, 3, 4031 };
+			for (int pos : positions) {
+				ByteBuffer buf = ByteBuffer.allocate(50);
+				channel.position(pos);
+				int bytesRead = channel.read(buf);
+				int expected = Math.min(50, contents.length - pos);
+				Assert.assertEquals(expected, bytesRead);
+				Assert.assertEquals(pos + expected, channel.position());
+				for (int i = 0; i < bytesRead; i++) {
+					Assert.assertEquals(contents[pos + i], buf.get(i));
+				}
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	// Multiple threads sharing a single volume object
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		EncFSConfig config = new EncFSConfig();
+		config.setBlockMACBytes(8);
+
+		final EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				fileProvider);
+
+		final int numThreads = 8;
+		for (int i = 0; i < numThreads; i++) {
+			byte[] contents = new byte[3000 + i];
+			Arrays.fill(contents, (byte) i);
+			OutputStream os = volume.createFile("/file" + i)
+					.openOutputStream(contents.length);
+			try {
+				os.write(contents);
+			} finally {
+				os.close();
+			}
+		}
+
+		final List<Throwable> errors = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final int fileNum = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 20; j++) {
+							EncFSFile file = volume.getFile("/file" + fileNum);
+							byte[] contents = EncFSVolumeIntegrationTest
+									.readInputStreamAsByteArray(file);
+							Assert.assertEquals(3000 + fileNum, contents.length);
+							for (byte b : contents) {
+								Assert.assertEquals((byte) fileNum, b);
+							}
+						}
+					} catch (Throwable t) {
+						errors.add(t);
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Assert.assertTrue(errors.toString(), errors.isEmpty());
+	}
+
+	// Sequential reads with blocks decrypted in parallel
+	@Test
+	public void testParallelRead() throws Exception {
+		EncFSConfig config = new EncFSConfig();
+		config.setBlockMACBytes(8);
+		config.setBlockMACRandBytes(8);
+
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				fileProvider);
+
+		byte[] contents = new byte[config.getBlockSize() * 10 + 123];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) (i % 253);
+		}
+
+		OutputStream os = volume.createFile("/parallel.bin").openOutputStream(
+				contents.length);
+		try {
+			os.write(contents);
+		} finally {
+			os.close();
+		}
+
+		EncFSFile file = volume.getFile("/parallel.bin");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			InputStream is = file.openInputStream(executor, 3);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try {
+				byte[] buf = new byte[777];
+				int bytesRead;
+				while ((bytesRead = is.read(buf)) >= 0) {
+					bos.write(buf, 0, bytesRead);
+				}
+			} finally {
+				is.close();
+			}
+
+			Assert.assertTrue(Arrays.equals(contents, bos.toByteArray()));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	// Writes with blocks encrypted in parallel
+	@Test
+	public void testParallelWrite() throws Exception {
+		EncFSConfig config = new EncFSConfig();
+		config.setBlockMACBytes(8);
+		config.setBlockMACRandBytes(8);
+
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				fileProvider);
+
+		byte[] contents = new byte[config.getBlockSize() * 12 + 77];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) (i % 241);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			OutputStream os = volume.createFile("/parallel.bin")
+					.openOutputStream(contents.length, executor, 4);
+			try {
+				// Uneven write sizes to cross block boundaries
+				int offset = 0;
+				while (offset < contents.length) {
+					int len = Math.min(1000, contents.length - offset);
+					os.write(contents, offset, len);
+					offset += len;
+				}
+			} finally {
+				os.close();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		EncFSFile file = volume.getFile("/parallel.bin");
+		Assert.assertEquals(contents.length, file.getLength());
+		Assert.assertTrue(Arrays.equals(contents,
+				EncFSVolumeIntegrationTest.readInputStreamAsByteArray(file)));
+	}
+
+	// File name cache lookups and invalidation
+	@Test
+	public void testNameCache() throws Exception {
+		EncFSConfig config = new EncFSConfig();
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				fileProvider);
+
+		Assert.assertTrue(volume.makeDir("/dir"));
+		EncFSFile file = volume.createFile("/dir/file.txt");
+		OutputStream os = file.openOutputStream(0);
+		os.close();
+
+		EncFSNameCache nameCache = volume.getNameCache();
+		String cachedName = nameCache.getEncodedName("/dir", "file.txt");
+		Assert.assertNotNull(cachedName);
+		Assert.assertEquals("file.txt",
+				nameCache.getDecodedName("/dir/", cachedName));
+
+		String cachedPath = EncFSCrypto.encodePath(volume, "/dir/file.txt",
+				EncFSVolume.ROOT_PATH);
+		Assert.assertEquals(file.getEncryptedPath(), cachedPath);
+
+		// Results must match with the cache disabled
+		volume.setNameCacheSize(0);
+		Assert.assertNull(volume.getNameCache());
+		Assert.assertEquals(cachedPath, EncFSCrypto.encodePath(volume,
+				"/dir/file.txt", EncFSVolume.ROOT_PATH));
+		volume.setNameCacheSize(100);
+
+		// Names cached before a move stay valid, so moving and recreating a
+		// path gives the same encrypted path
+		Assert.assertNotNull(volume.getFile("/dir/file.txt"));
+		nameCache = volume.getNameCache();
+		Assert.assertEquals(cachedName,
+				nameCache.getEncodedName("/dir", "file.txt"));
+		Assert.assertTrue(volume.movePath("/dir", "/moved"));
+		Assert.assertTrue(volume.pathExists("/moved/file.txt"));
+		Assert.assertFalse(volume.pathExists("/dir/file.txt"));
+		Assert.assertTrue(volume.makeDir("/dir"));
+		volume.createFile("/dir/file.txt").openOutputStream(0).close();
+		Assert.assertEquals(cachedPath, volume.getFile("/dir/file.txt")
+				.getEncryptedPath());
+
+		// Deleted files are no longer found through cached names
+		Assert.assertTrue(volume.deletePath("/moved/file.txt", false));
+		Assert.assertFalse(volume.pathExists("/moved/file.txt"));
+	}
+
+	// Chained name IVs memoized per directory
+	@Test
+	public void testChainIvCache() throws Exception {
+		EncFSConfig config = new EncFSConfig();
+		config.setChainedNameIV(true);
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				fileProvider);
+
+		Assert.assertTrue(volume.makeDirs("/a/b/c"));
+		for (int i = 0; i < 5; i++) {
+			volume.createFile("/a/b/c/file" + i).openOutputStream(0).close();
+		}
+
+		EncFSNameCache nameCache = volume.getNameCache();
+		byte[] chainIv = nameCache.getChainIv("/a/b/c");
+		Assert.assertNotNull(chainIv);
+		Assert.assertNotNull(nameCache.getChainIv("/a/b/"));
+
+		// Callers get their own copy of the cached IV
+		Arrays.fill(chainIv, (byte) 0);
+		Assert.assertFalse(Arrays.equals(chainIv,
+				nameCache.getChainIv("/a/b/c")));
+
+		String[] cachedNames = volume.getFile("/a/b/c").list();
+		String cachedPath = volume.getFile("/a/b/c/file3").getEncryptedPath();
+
+		// Results must match with the cache disabled
+		volume.setNameCacheSize(0);
+		String[] uncachedNames = volume.getFile("/a/b/c").list();
+		Arrays.sort(cachedNames);
+		Arrays.sort(uncachedNames);
+		Assert.assertTrue(Arrays.equals(cachedNames, uncachedNames));
+		Assert.assertEquals(5, uncachedNames.length);
+		Assert.assertEquals(cachedPath, volume.getFile("/a/b/c/file3")
+				.getEncryptedPath());
+	}
+
+	// Directory listing with file names decoded in parallel
+	@Test
+	public void testParallelListFiles() throws Exception {
+		EncFSConfig config = new EncFSConfig();
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				fileProvider);
+
+		Assert.assertTrue(volume.makeDir("/dir"));
+		for (int i = 0; i < 600; i++) {
+			volume.createFile("/dir/file" + i).openOutputStream(0).close();
+		}
+
+		// Entry that can't be decoded must be skipped
+		String encDir = volume.getFile("/dir").getEncryptedPath();
+		fileProvider.createFile(encDir + "/notencrypted");
+
+		volume.setNameCacheSize(0);
+		EncFSFile dir = volume.getFile("/dir");
+		EncFSFile[] serial = dir.listFiles();
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			EncFSFile[] parallel = dir.listFiles(pool);
+			Assert.assertEquals(600, parallel.length);
+			Assert.assertEquals(serial.length, parallel.length);
+			for (int i = 0; i < serial.length; i++) {
+				Assert.assertEquals(serial[i].getPath(), parallel[i].getPath());
+				Assert.assertEquals(serial[i].getEncryptedPath(),
+						parallel[i].getEncryptedPath());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	// Lazy directory listing through a DirectoryStream
+	@Test
+	public void testDirectoryStream() throws Exception {
+		EncFSConfig config = new EncFSConfig();
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				fileProvider);
+
+		Assert.assertTrue(volume.makeDir("/dir"));
+		for (int i = 0; i < 20; i++) {
+			volume.createFile("/dir/file" + i).openOutputStream(0).close();
+		}
+		String encDir = volume.getFile("/dir").getEncryptedPath();
+		fileProvider.createFile(encDir + "/notencrypted");
+
+		List<String> streamed = new ArrayList<String>();
+		DirectoryStream<EncFSFile> stream = volume.getFile("/dir")
+				.openDirectoryStream();
+		try {
+			for (EncFSFile file : stream) {
+				Assert.assertEquals("/dir", file.getParentPath());
+				streamed.add(file.getName());
+			}
+
+			try {
+				stream.iterator();
+				Assert.fail("Second iterator() call must fail");
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+		} finally {
+			stream.close();
+		}
+
+		List<String> listed = Arrays.asList(volume.getFile("/dir").list());
+		Collections.sort(streamed);
+		Collections.sort(listed);
+		Assert.assertEquals(listed, streamed);
+		Assert.assertEquals(20, streamed.size());
+
+		try {
+			volume.getFile("/dir/file0").openDirectoryStream();
+			Assert.fail("Opening a stream on a file must fail");
+		} catch (NotDirectoryException e) {
+			// Expected
+		}
+	}
+
+	// Metadata cached by a provider decorator and invalidated on mutation
+	@Test
+	public void testCachingFileProvider() throws Exception {
+		EncFSCachingFileProvider cachingProvider = new EncFSCachingFileProvider(
+				fileProvider, 1, TimeUnit.HOURS, 1000);
+		EncFSConfig config = new EncFSConfig();
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				cachingProvider);
+
+		Assert.assertTrue(volume.makeDir("/dir"));
+		Assert.assertFalse(volume.pathExists("/dir/file.txt"));
+
+		// Writes through the volume are visible right away
+		EncFSFile file = volume.createFile("/dir/file.txt");
+		OutputStream os = file.openOutputStream(5);
+		os.write("hello".getBytes());
+		os.close();
+		Assert.assertTrue(volume.pathExists("/dir/file.txt"));
+		Assert.assertEquals(5, volume.getFile("/dir/file.txt").getLength());
+		Assert.assertEquals(1, volume.getFile("/dir").listFiles().length);
+
+		// Changes bypassing the cache are only seen after invalidation
+		String encPath = volume.getFile("/dir/file.txt").getEncryptedPath();
+		Assert.assertTrue(fileProvider.delete(encPath));
+		Assert.assertTrue(volume.pathExists("/dir/file.txt"));
+		cachingProvider.invalidateAll();
+		Assert.assertFalse(volume.pathExists("/dir/file.txt"));
+		Assert.assertEquals(0, volume.getFile("/dir").listFiles().length);
+
+		// Moves and deletes drop everything below the affected paths
+		volume.createFile("/dir/other.txt").openOutputStream(0).close();
+		Assert.assertTrue(volume.movePath("/dir", "/moved"));
+		Assert.assertFalse(volume.pathExists("/dir"));
+		Assert.assertTrue(volume.pathExists("/moved/other.txt"));
+		Assert.assertTrue(volume.deletePath("/moved", true));
+		Assert.assertFalse(volume.pathExists("/moved/other.txt"));
+		Assert.assertEquals(0, volume.getRootDir().listFiles().length);
+
+		// Optional interfaces of the underlying provider are forwarded, and
+		// writes through a channel are visible once it's closed
+		Assert.assertTrue(cachingProvider
+				.supports(EncFSRangeFileProvider.class));
+		Assert.assertFalse(cachingProvider
+				.supports(EncFSBulkDeleteFileProvider.class));
+		os = volume.createFile("/channel.bin").openOutputStream(3);
+		os.write("abc".getBytes());
+		os.close();
+		Assert.assertEquals(3, volume.getFile("/channel.bin").getLength());
+		SeekableByteChannel channel = volume.getFile("/channel.bin")
+				.openChannel(true);
+		try {
+			channel.position(3);
+			channel.write(ByteBuffer.wrap("def".getBytes()));
+		} finally {
+			channel.close();
+		}
+		Assert.assertEquals(6, volume.getFile("/channel.bin").getLength());
+		Assert.assertEquals("abcdef", EncFSVolumeIntegrationTest
+				.readInputStreamAsString(volume.getFile("/channel.bin")));
+		DirectoryStream<EncFSFile> stream = volume.getRootDir()
+				.openDirectoryStream();
+		try {
+			int count = 0;
+			for (EncFSFile entry : stream) {
+				Assert.assertEquals("channel.bin", entry.getName());
+				count++;
+			}
+			Assert.assertEquals(1, count);
+		} finally {
+			stream.close();
+		}
+
+		// Providers lacking an interface get the equivalent basic operations
+		String channelPath = volume.getFile("/channel.bin").getEncryptedPath();
+		EncFSCachingFileProvider nioCache = new EncFSCachingFileProvider(
+				new EncFSNioFileProvider(tempDir.toPath()), 1, TimeUnit.HOURS,
+				1000);
+		Assert.assertFalse(nioCache.supports(EncFSRangeFileProvider.class));
+		Assert.assertFalse(nioCache.supports(EncFSMappedFileProvider.class));
+		Assert.assertNull(nioCache.mapFile(channelPath));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		EncFSUtil.copyWholeStream(fileProvider.openInputStream(channelPath),
+				bos, true, true);
+		byte[] raw = bos.toByteArray();
+		bos.reset();
+		EncFSUtil.copyWholeStream(nioCache.openInputStream(channelPath, 4,
+				raw.length), bos, true, true);
+		Assert.assertTrue(Arrays.equals(
+				Arrays.copyOfRange(raw, 4, raw.length), bos.toByteArray()));
+
+		// Bulk deletes reach a bulk capable provider and drop cached paths
+		BulkDeleteFileProvider bulkProvider = new BulkDeleteFileProvider(
+				tempDir);
+		EncFSCachingFileProvider bulkCache = new EncFSCachingFileProvider(
+				bulkProvider, 1, TimeUnit.HOURS, 1000);
+		Assert.assertTrue(bulkCache.exists(channelPath));
+		Assert.assertTrue(bulkCache.deleteAll(Collections
+				.singletonList(channelPath)));
+		Assert.assertEquals(1, bulkProvider.bulkDeletes.get());
+		Assert.assertFalse(bulkCache.exists(channelPath));
+	}
+
+	// Invalidating a directory drops its cached subtree only
+	@Test
+	public void testCachingFileProviderInvalidation() throws Exception {
+		EncFSCachingFileProvider cachingProvider = new EncFSCachingFileProvider(
+				fileProvider, 1, TimeUnit.HOURS, 1000);
+		EncFSConfig config = new EncFSConfig();
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				cachingProvider);
+
+		Assert.assertTrue(volume.makeDirs("/a/b"));
+		Assert.assertTrue(volume.makeDir("/c"));
+		volume.createFile("/a/b/file.txt").openOutputStream(0).close();
+		volume.createFile("/c/file.txt").openOutputStream(0).close();
+		String encFile = volume.getFile("/a/b/file.txt").getEncryptedPath();
+		String encDir = volume.getFile("/a").getEncryptedPath();
+		String encOther = volume.getFile("/c/file.txt").getEncryptedPath();
+		Assert.assertTrue(cachingProvider.exists(encFile));
+		Assert.assertTrue(cachingProvider.exists(encOther));
+
+		// Changes below the invalidated directory are picked up, while paths
+		// outside of it are still served from the cache
+		Assert.assertTrue(fileProvider.delete(encFile));
+		Assert.assertTrue(fileProvider.delete(encOther));
+		cachingProvider.invalidate(encDir);
+		Assert.assertFalse(cachingProvider.exists(encFile));
+		Assert.assertTrue(cachingProvider.exists(encOther));
+
+		// A directory moved underneath cached paths drops them too
+		cachingProvider.invalidateAll();
+		volume.createFile("/a/b/file.txt").openOutputStream(0).close();
+		encFile = volume.getFile("/a/b/file.txt").getEncryptedPath();
+		Assert.assertTrue(cachingProvider.exists(encFile));
+		Assert.assertTrue(cachingProvider.move(encDir, encDir + "x"));
+		Assert.assertFalse(cachingProvider.exists(encFile));
+
+		// A lookup racing with a delete doesn't cache its stale result over
+		// the delete's invalidation
+		final EncFSCachingFileProvider[] racing =
+				new EncFSCachingFileProvider[1];
+		EncFSLocalFileProvider racyProvider = new EncFSLocalFileProvider(
+				tempDir) {
+			@Override
+			public boolean exists(String srcPath) {
+				boolean result = super.exists(srcPath);
+				if (result && delete(srcPath)) {
+					// Like a delete done by another thread meanwhile
+					racing[0].invalidate(srcPath);
+				}
+				return result;
+			}
+		};
+		racing[0] = new EncFSCachingFileProvider(racyProvider, 1,
+				TimeUnit.HOURS, 1000);
+		fileProvider.createFile("/race.txt");
+		Assert.assertTrue(racing[0].exists("/race.txt"));
+		Assert.assertFalse(racing[0].exists("/race.txt"));
+	}
+
+	// NIO based provider matching the java.io.File based one
+	@Test
+	public void testNioFileProvider() throws Exception {
+		EncFSNioFileProvider nioProvider = new EncFSNioFileProvider(
+				tempDir.toPath());
+		EncFSConfig config = new EncFSConfig();
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				nioProvider);
+		EncFSVolumeTestCommon.testFileOperations(volume);
+
+		Assert.assertTrue(volume.makeDirs("/a/b"));
+		OutputStream os = volume.createFile("/a/b/file.txt")
+				.openOutputStream(3);
+		os.write("abc".getBytes());
+		os.close();
+
+		String encDir = volume.getFile("/a/b").getEncryptedPath();
+		List<EncFSFileInfo> nioInfos = nioProvider.listFiles(encDir);
+		List<EncFSFileInfo> localInfos = fileProvider.listFiles(encDir);
+		Assert.assertEquals(1, nioInfos.size());
+		Assert.assertEquals(localInfos.size(), nioInfos.size());
+
+		EncFSFileInfo nioInfo = nioInfos.get(0);
+		EncFSFileInfo localInfo = localInfos.get(0);
+		Assert.assertEquals(localInfo.getName(), nioInfo.getName());
+		Assert.assertEquals(localInfo.getParentPath(), nioInfo.getParentPath());
+		Assert.assertEquals(localInfo.getSize(), nioInfo.getSize());
+		Assert.assertEquals(localInfo.getLastModified(),
+				nioInfo.getLastModified());
+		Assert.assertFalse(nioInfo.isDirectory());
+		Assert.assertTrue(nioInfo.isReadable());
+		Assert.assertTrue(nioInfo.isWritable());
+
+		// Reopening the volume through the NIO provider reads back the file
+		volume = new EncFSVolume(nioProvider, "testPassword");
+		EncFSFile file = volume.getFile("/a/b/file.txt");
+		Assert.assertEquals(3, file.getLength());
+		Assert.assertEquals("abc",
+				EncFSVolumeIntegrationTest.readInputStreamAsString(file));
+	}
+
+	// Reads served from memory mapped encrypted files
+	@Test
+	public void testMemoryMappedRead() throws Exception {
+		EncFSConfig config = new EncFSConfig();
+		config.setBlockMACBytes(8);
+		config.setBlockMACRandBytes(8);
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				fileProvider);
+
+		byte[] contents = new byte[10000];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) (i % 241);
+		}
+		OutputStream os = volume.createFile("/mapped.bin").openOutputStream(
+				contents.length);
+		os.write(contents);
+		os.close();
+		volume.createFile("/empty.bin").openOutputStream(0).close();
+
+		fileProvider.setMemoryMapped(true);
+		EncFSFile file = volume.getFile("/mapped.bin");
+		Assert.assertNotNull(file.mapEncryptedFile());
+		Assert.assertTrue(Arrays.equals(contents,
+				EncFSVolumeIntegrationTest.readInputStreamAsByteArray(file)));
+		Assert.assertEquals(0, EncFSVolumeIntegrationTest
+				.readInputStreamAsByteArray(volume.getFile("/empty.bin")).length);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			InputStream is = file.openInputStream(executor, 3);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			EncFSUtil.copyWholeStream(is, bos, true, true);
+			Assert.assertTrue(Arrays.equals(contents, bos.toByteArray()));
+		} finally {
+			executor.shutdown();
+		}
+
+		SeekableByteChannel channel = file.openChannel();
+		try {
+			int[] positions = { 9990, 0, 5000, 17, 4031 };
+			for (int pos : positions) {
+				ByteBuffer buf = ByteBuffer.allocate(30);
+				channel.position(pos);
+				int bytesRead = channel.read(buf);
+				Assert.assertEquals(Math.min(30, contents.length - pos),
+						bytesRead);
+				for (int i = 0; i < bytesRead; i++) {
+					Assert.assertEquals(contents[pos + i], buf.get(i));
+				}
+			}
+		} finally {
+			channel.close();
+		}
+
+		fileProvider.setMemoryMapped(false);
+		Assert.assertNull(file.mapEncryptedFile());
+	}
+
+	// Positional reads from multiple threads on the same file
+	@Test
+	public void testPositionalRead() throws Exception {
+		EncFSConfig config = new EncFSConfig();
+		config.setBlockMACBytes(8);
+		config.setBlockMACRandBytes(8);
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				fileProvider);
+
+		final byte[] contents = new byte[20000];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) (i % 239);
+		}
+		OutputStream os = volume.createFile("/pread.bin").openOutputStream(
+				contents.length);
+		os.write(contents);
+		os.close();
+
+		final EncFSFile file = volume.getFile("/pread.bin");
+		byte[] buf = new byte[100];
+		Assert.assertEquals(-1, file.read(contents.length, buf, 0, 10));
+		Assert.assertEquals(5, file.read(contents.length - 5, buf, 0, 10));
+		Assert.assertEquals(0, file.read(0, buf, 0, 0));
+
+		for (boolean mapped : new boolean[] { false, true }) {
+			fileProvider.setMemoryMapped(mapped);
+
+			final List<Throwable> errors = Collections
+					.synchronizedList(new ArrayList<Throwable>());
+			Thread[] threads = new Thread[4];
+			for (int t = 0; t < threads.length; t++) {
+				final int seed = t;
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							byte[] readBuf = new byte[3000];
+							for (int i = 0; i < 20; i++) {
+								int pos = (seed * 4099 + i * 997)
+										% contents.length;
+								int len = (i * 331) % (readBuf.length - 1);
+								int bytesRead = file.read(pos, readBuf, 1, len);
+								int expected = Math.min(len, contents.length
+										- pos);
+								Assert.assertEquals(expected, bytesRead);
+								for (int j = 0; j < bytesRead; j++) {
+									Assert.assertEquals(contents[pos + j],
+											readBuf[1 + j]);
+								}
+							}
+						} catch (Throwable e) {
+							errors.add(e);
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			Assert.assertTrue(errors.toString(), errors.isEmpty());
+		}
+	}
+
+	// Opening encrypted files at an offset
+	@Test
+	public void testRangeOpen() throws Exception {
+		EncFSConfig config = new EncFSConfig();
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				fileProvider);
+
+		byte[] contents = new byte[9000];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) (i % 233);
+		}
+		OutputStream os = volume.createFile("/range.bin").openOutputStream(
+				contents.length);
+		os.write(contents);
+		os.close();
+
+		String encPath = volume.getFile("/range.bin").getEncryptedPath();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		EncFSUtil.copyWholeStream(fileProvider.openInputStream(encPath), bos,
+				true, true);
+		byte[] raw = bos.toByteArray();
+		bos.reset();
+		EncFSUtil.copyWholeStream(
+				fileProvider.openInputStream(encPath, 100, 50), bos, true,
+				true);
+		Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(raw, 100, 150),
+				bos.toByteArray()));
+		bos.reset();
+		EncFSUtil.copyWholeStream(fileProvider.openInputStream(encPath,
+				raw.length - 10, 50), bos, true, true);
+		Assert.assertEquals(10, bos.size());
+
+		// Positional reads with and without range support must match, the
+		// caching provider only supports ranges if its delegate does
+		EncFSCachingFileProvider streamProvider = new EncFSCachingFileProvider(
+				new EncFSNioFileProvider(tempDir.toPath()), 1,
+				TimeUnit.MINUTES, 100);
+		Assert.assertFalse(streamProvider
+				.supports(EncFSRangeFileProvider.class));
+		EncFSVolume streamVolume = new EncFSVolume(streamProvider,
+				"testPassword");
+		EncFSFile rangeFile = volume.getFile("/range.bin");
+		EncFSFile streamFile = streamVolume.getFile("/range.bin");
+		int[] positions = { 8990, 0, 4500, 1023, 2048 };
+		for (int pos : positions) {
+			byte[] rangeBuf = new byte[1500];
+			byte[] streamBuf = new byte[1500];
+			int rangeRead = rangeFile.read(pos, rangeBuf, 0, rangeBuf.length);
+			int streamRead = streamFile.read(pos, streamBuf, 0,
+					streamBuf.length);
+			Assert.assertEquals(Math.min(1500, contents.length - pos),
+					rangeRead);
+			Assert.assertEquals(rangeRead, streamRead);
+			Assert.assertTrue(Arrays.equals(rangeBuf, streamBuf));
+			Assert.assertTrue(Arrays.equals(
+					Arrays.copyOfRange(contents, pos, pos + rangeRead),
+					Arrays.copyOf(rangeBuf, rangeRead)));
+		}
+	}
+
+	// In place modification and appending through a writable channel
+	@Test
+	public void testWritableChannel() throws Exception {
+		EncFSConfig plainConfig = new EncFSConfig();
+		EncFSConfig macConfig = new EncFSConfig();
+		macConfig.setBlockMACBytes(8);
+		macConfig.setBlockMACRandBytes(8);
+		EncFSConfig noIvConfig = new EncFSConfig();
+		noIvConfig.setUniqueIV(false);
+		noIvConfig.setBlockMACBytes(8);
+
+		EncFSConfig[] configs = { plainConfig, macConfig, noIvConfig };
+		for (int c = 0; c < configs.length; c++) {
+			File volumeDir = new File(tempDir, "volume" + c);
+			Assert.assertTrue(volumeDir.mkdir());
+			EncFSVolume volume = EncFSVolumeTestCommon.createVolume(
+					configs[c], new EncFSLocalFileProvider(volumeDir));
+
+			byte[] contents = new byte[3000];
+			for (int i = 0; i < contents.length; i++) {
+				contents[i] = (byte) (i % 241);
+			}
+			OutputStream os = volume.createFile("/write.bin")
+					.openOutputStream(contents.length);
+			os.write(contents);
+			os.close();
+
+			// Read-only channels must reject writes
+			SeekableByteChannel channel = volume.getFile("/write.bin")
+					.openChannel();
+			try {
+				channel.write(ByteBuffer.allocate(1));
+				Assert.fail();
+			} catch (NonWritableChannelException e) {
+				// Expected
+			} finally {
+				channel.close();
+			}
+
+			byte[] patch = new byte[2500];
+			Arrays.fill(patch, (byte) 7);
+			channel = volume.getFile("/write.bin").openChannel(true);
+			try {
+				// Patch a range spanning a block boundary
+				channel.position(1000);
+				Assert.assertEquals(100,
+						channel.write(ByteBuffer.wrap(patch, 0, 100)));
+				System.arraycopy(patch, 0, contents, 1000, 100);
+
+				// Append across several blocks
+				channel.position(channel.size());
+				channel.write(ByteBuffer.wrap(patch));
+				contents = concat(contents, patch);
+				Assert.assertEquals(contents.length, channel.size());
+
+				// Writing past the end leaves zeros behind
+				channel.position(contents.length + 700);
+				channel.write(ByteBuffer.wrap(patch, 0, 10));
+				contents = concat(contents, new byte[700]);
+				contents = concat(contents, Arrays.copyOf(patch, 10));
+				Assert.assertEquals(contents.length, channel.position());
+
+				// The channel reads back its own writes
+				ByteBuffer buf = ByteBuffer.allocate(200);
+				channel.position(950);
+				channel.read(buf);
+				Assert.assertTrue(Arrays.equals(
+						Arrays.copyOfRange(contents, 950, 1150), buf.array()));
+			} finally {
+				channel.close();
+			}
+
+			EncFSFile file = volume.getFile("/write.bin");
+			Assert.assertEquals(contents.length, file.getLength());
+			Assert.assertTrue(Arrays.equals(contents, readFile(file)));
+
+			// Write into an empty file
+			os = volume.createFile("/empty.bin").openOutputStream(0);
+			os.close();
+			channel = volume.getFile("/empty.bin").openChannel(true);
+			try {
+				channel.write(ByteBuffer.wrap(patch, 0, 1500));
+			} finally {
+				channel.close();
+			}
+			file = volume.getFile("/empty.bin");
+			Assert.assertEquals(1500, file.getLength());
+			Assert.assertTrue(Arrays.equals(Arrays.copyOf(patch, 1500),
+					readFile(file)));
+
+			// Channels opened later on the same object see earlier writes
+			file = volume.createFile("/reuse.bin");
+			os = file.openOutputStream(contents.length);
+			os.write(contents);
+			os.close();
+			channel = file.openChannel(false);
+			try {
+				Assert.assertEquals(contents.length, channel.size());
+			} finally {
+				channel.close();
+			}
+			channel = file.openChannel(true);
+			try {
+				channel.position(channel.size());
+				channel.write(ByteBuffer.wrap(patch, 0, 100));
+			} finally {
+				channel.close();
+			}
+			channel = file.openChannel(false);
+			try {
+				Assert.assertEquals(contents.length + 100, channel.size());
+			} finally {
+				channel.close();
+			}
+			byte[] tail = new byte[100];
+			Assert.assertEquals(100,
+					file.read(contents.length, tail, 0, tail.length));
+			Assert.assertTrue(Arrays.equals(Arrays.copyOf(patch, 100), tail));
+		}
+	}
+
+	// Truncating and sparsely extending files
+	@Test
+	public void testSetLength() throws Exception {
+		EncFSConfig sparseConfig = new EncFSConfig();
+		EncFSConfig macConfig = new EncFSConfig();
+		macConfig.setBlockMACBytes(8);
+		macConfig.setBlockMACRandBytes(8);
+		EncFSConfig noHolesConfig = new EncFSConfig();
+		noHolesConfig.setHolesAllowed(false);
+
+		EncFSConfig[] configs = { sparseConfig, macConfig, noHolesConfig };
+		for (int c = 0; c < configs.length; c++) {
+			File volumeDir = new File(tempDir, "volume" + c);
+			Assert.assertTrue(volumeDir.mkdir());
+			EncFSVolume volume = EncFSVolumeTestCommon.createVolume(
+					configs[c], new EncFSLocalFileProvider(volumeDir));
+			int blockDataSize = configs[c].getBlockSize()
+					- configs[c].getBlockMACBytes()
+					- configs[c].getBlockMACRandBytes();
+
+			byte[] contents = new byte[5000];
+			for (int i = 0; i < contents.length; i++) {
+				contents[i] = (byte) (i % 239 + 1);
+			}
+			OutputStream os = volume.createFile("/length.bin")
+					.openOutputStream(contents.length);
+			os.write(contents);
+			os.close();
+
+			long[] lengths = { 3000, 3 * blockDataSize, 3 * blockDataSize + 1,
+					5 * blockDataSize, 200000, 100, 0, 777 };
+			for (long length : lengths) {
+				volume.getFile("/length.bin").setLength(length);
+				byte[] expected = Arrays.copyOf(contents, (int) length);
+				contents = expected;
+
+				EncFSFile file = volume.getFile("/length.bin");
+				Assert.assertEquals(length, file.getLength());
+				Assert.assertTrue(Arrays.equals(expected, readFile(file)));
+			}
+
+			// Files can be appended to after being shrunk
+			SeekableByteChannel channel = volume.getFile("/length.bin")
+					.openChannel(true);
+			try {
+				channel.position(channel.size());
+				channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+			} finally {
+				channel.close();
+			}
+			contents = concat(contents, new byte[] { 1, 2, 3 });
+			Assert.assertTrue(Arrays.equals(contents,
+					readFile(volume.getFile("/length.bin"))));
+
+			// Repeated calls on the same object work from the current length
+			long[][] sameObjectLengths = { { 3000, 5, 2000 }, { 10, 100, 50 } };
+			for (long[] sequence : sameObjectLengths) {
+				volume.getFile("/length.bin").setLength(sequence[0]);
+				contents = Arrays.copyOf(contents, (int) sequence[0]);
+				EncFSFile file = volume.getFile("/length.bin");
+				for (int i = 1; i < sequence.length; i++) {
+					file.setLength(sequence[i]);
+					contents = Arrays.copyOf(contents, (int) sequence[i]);
+					EncFSFile updated = volume.getFile("/length.bin");
+					Assert.assertEquals(sequence[i], updated.getLength());
+					Assert.assertTrue(Arrays.equals(contents,
+							readFile(updated)));
+				}
+			}
+		}
+	}
+
+	// Copies within a volume reuse the ciphertext when it's path independent
+	@Test
+	public void testCiphertextCopy() throws Exception {
+		EncFSConfig config = new EncFSConfig();
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				fileProvider);
+
+		byte[] contents = new byte[4000];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) (i % 227);
+		}
+		OutputStream os = volume.createFile("/source.bin").openOutputStream(
+				contents.length);
+		os.write(contents);
+		os.close();
+
+		volume.makeDir("/dir");
+		Assert.assertTrue(volume.copyPath("/source.bin", "/dir/copy.bin"));
+
+		EncFSFile source = volume.getFile("/source.bin");
+		EncFSFile copy = volume.getFile("/dir/copy.bin");
+		Assert.assertFalse(source.getEncrytedName().equals(
+				copy.getEncrytedName()));
+		Assert.assertTrue(Arrays.equals(
+				readRaw(source.getEncryptedPath()),
+				readRaw(copy.getEncryptedPath())));
+		Assert.assertTrue(Arrays.equals(contents, readFile(copy)));
+
+		// Volumes using external IV chaining can be browsed but their file
+		// contents can't be accessed
+		String configXml = new String(readRaw(EncFSVolume.CONFIG_FILE_NAME),
+				"UTF-8");
+		Assert.assertTrue(configXml
+				.contains("<externalIVChaining>0</externalIVChaining>"));
+		configXml = configXml.replace(
+				"<externalIVChaining>0</externalIVChaining>",
+				"<externalIVChaining>1</externalIVChaining>");
+		os = fileProvider.openOutputStream(EncFSVolume.CONFIG_FILE_NAME, 0);
+		os.write(configXml.getBytes("UTF-8"));
+		os.close();
+		volume = new EncFSVolume(fileProvider, "testPassword");
+		Assert.assertEquals(2, volume.listFilesForPath("/").length);
+		Assert.assertTrue(volume.movePath("/source.bin", "/moved.bin"));
+		EncFSFile moved = volume.getFile("/moved.bin");
+		try {
+			moved.openInputStream();
+			Assert.fail("Input stream was opened");
+		} catch (EncFSUnsupportedException e) {
+			// Expected
+		}
+		try {
+			moved.openOutputStream(0);
+			Assert.fail("Output stream was opened");
+		} catch (EncFSUnsupportedException e) {
+			// Expected
+		}
+		try {
+			moved.openChannel(true);
+			Assert.fail("Channel was opened");
+		} catch (EncFSUnsupportedException e) {
+			// Expected
+		}
+		try {
+			moved.setLength(10);
+			Assert.fail("Length was set");
+		} catch (EncFSUnsupportedException e) {
+			// Expected
+		}
+		try {
+			moved.copy(volume.createFile("/target.bin"));
+			Assert.fail("File was copied");
+		} catch (IOException e) {
+			Assert.assertTrue(
+					e.getCause() instanceof EncFSUnsupportedException);
+		}
+
+		config.setExternalIVChaining(true);
+		try {
+			EncFSVolume.createVolume(fileProvider, config, "testPassword");
+			Assert.fail("External IV chaining volume was created");
+		} catch (EncFSUnsupportedException e) {
+			// Expected
+		}
+	}
+
+	private byte[] readRaw(String encryptedPath) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		EncFSUtil.copyWholeStream(fileProvider.openInputStream(encryptedPath),
+				bos, true, true);
+		return bos.toByteArray();
+	}
+
+	// Directory trees copied and moved with files processed in parallel
+	@Test
+	public void testParallelCopyMove() throws Exception {
+		EncFSConfig config = new EncFSConfig();
+		EncFSVolume volume = EncFSVolumeTestCommon.createVolume(config,
+				fileProvider);
+
+		volume.makeDirs("/tree/a/b");
+		volume.makeDir("/tree/c");
+		String[] dirs = { "/tree", "/tree/a", "/tree/a/b", "/tree/c" };
+		for (String dir : dirs) {
+			for (int i = 0; i < 5; i++) {
+				OutputStream os = volume.createFile(dir + "/file" + i)
+						.openOutputStream(dir.length() + i);
+				os.write(Arrays.copyOf(dir.getBytes(), dir.length() + i));
+				os.close();
+			}
+		}
+
+		final List<Integer> events = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		EncFSProgressListener listener = new EncFSProgressListener() {
+			@Override
+			public void handleEvent(int eventType) {
+				if (eventType == FILE_PROCESS_EVENT) {
+					events.add(eventType);
+				}
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Assert.assertTrue(volume.copyPath("/tree", "/copy", listener,
+					executor));
+			Assert.assertEquals(24, events.size());
+
+			events.clear();
+			Assert.assertTrue(volume.movePath("/copy", "/moved", listener,
+					executor));
+			Assert.assertEquals(24, events.size());
+		} finally {
+			executor.shutdown();
+		}
+
+		Assert.assertFalse(volume.pathExists("/copy"));
+		for (String dir : dirs) {
+			String movedDir = "/moved" + dir.substring("/tree".length());
+			for (int i = 0; i < 5; i++) {
+				EncFSFile file = volume.getFile(movedDir + "/file" + i);
+				Assert.assertTrue(Arrays.equals(
+						Arrays.copyOf(dir.getBytes(), dir.length() + i),
+						readFile(file)));
+			}
+		}
+	}
+
+	// Single pass recursive delete on encrypted paths
+	@Test
+	public void testParallelDelete() throws Exception {
+		File plainDir = new File(tempDir, "plain");
+		File bulkDir = new File(tempDir, "bulk");
+		Assert.assertTrue(plainDir.mkdir() && bulkDir.mkdir());
+		BulkDeleteFileProvider bulkProvider = new BulkDeleteFileProvider(
+				bulkDir);
+		EncFSVolume[] volumes = {
+				EncFSVolumeTestCommon.createVolume(new EncFSConfig(),
+						new EncFSLocalFileProvider(plainDir)),
+				EncFSVolumeTestCommon.createVolume(new EncFSConfig(),
+						bulkProvider) };
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (EncFSVolume volume : volumes) {
+				volume.makeDirs("/tree/a/b");
+				volume.makeDirs("/tree/c");
+				volume.makeDir("/keep");
+				String[] dirs = { "/tree", "/tree/a", "/tree/a/b", "/keep" };
+				for (String dir : dirs) {
+					// Enough files in /tree to be split across several tasks
+					int numFiles = dir.equals("/tree") ? 150 : 10;
+					for (int i = 0; i < numFiles; i++) {
+						OutputStream os = volume.createFile(dir + "/file" + i)
+								.openOutputStream(1);
+						os.write(i);
+						os.close();
+					}
+				}
+
+				Assert.assertTrue(volume.deletePath("/tree", executor));
+				Assert.assertFalse(volume.pathExists("/tree"));
+				Assert.assertEquals(10, volume.getFile("/keep").list().length);
+				Assert.assertTrue(volume.deletePath("/keep/file3", null));
+				Assert.assertEquals(9, volume.getFile("/keep").list().length);
+
+				// The root itself stays, and so does the configuration
+				Assert.assertTrue(volume.deletePath("/", executor));
+				Assert.assertEquals(0, volume.getRootDir().list().length);
+				Assert.assertTrue(volume.getFileProvider().exists(
+						"/" + EncFSVolume.CONFIG_FILE_NAME));
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		Assert.assertTrue(bulkProvider.bulkDeletes.get() > 0);
+	}
+
+	// Local provider counting bulk deletions
+	private static class BulkDeleteFileProvider extends EncFSLocalFileProvider
+			implements EncFSBulkDeleteFileProvider {
+		final AtomicInteger bulkDeletes = new AtomicInteger();
+
+		BulkDeleteFileProvider(File rootPath) {
+			super(rootPath);
+		}
+
+		public boolean deleteAll(List<String> filePaths) throws IOException {
+			bulkDeletes.incrementAndGet();
+			for (String filePath : filePaths) {
+				if (!delete(filePath)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	// Password-based keys cached between volume unlocks
+	@Test
+	public void testKeyCache() throws Exception {
+		EncFSVolumeTestCommon.createVolume(new EncFSConfig(), fileProvider);
+
+		EncFSKeyCache keyCache = new EncFSKeyCache(2);
+		EncFSVolume volume = new EncFSVolume(fileProvider, "testPassword",
+				keyCache);
+		EncFSConfig config = volume.getConfig();
+		Assert.assertEquals(1, keyCache.size());
+		Assert.assertTrue(Arrays.equals(volume.getPasswordKey(),
+				keyCache.get(config, "testPassword")));
+		Assert.assertNull(keyCache.get(config, "wrongPassword"));
+
+		// Reopening uses the cached key
+		EncFSVolume reopened = new EncFSVolume(fileProvider, "testPassword",
+				keyCache);
+		Assert.assertTrue(Arrays.equals(volume.getPasswordKey(),
+				reopened.getPasswordKey()));
+
+		// Wrong passwords are never cached
+		try {
+			new EncFSVolume(fileProvider, "wrongPassword", keyCache);
+			Assert.fail();
+		} catch (EncFSInvalidPasswordException e) {
+			// Expected
+		}
+		Assert.assertEquals(1, keyCache.size());
+
+		// Returned keys are copies
+		byte[] passwordKey = keyCache.get(config, "testPassword");
+		Arrays.fill(passwordKey, (byte) 0);
+		Assert.assertTrue(Arrays.equals(volume.getPasswordKey(),
+				keyCache.get(config, "testPassword")));
+
+		Assert.assertEquals(1, keyCache.evict(config));
+		Assert.assertEquals(0, keyCache.size());
+		Assert.assertTrue(Arrays.equals(volume.getPasswordKey(),
+				keyCache.getPasswordKey(config, "testPassword")));
+		Assert.assertEquals(1, keyCache.size());
+		keyCache.clear();
+		Assert.assertNull(keyCache.get(config, "testPassword"));
+	}
+
+	// Volumes kept open by a registry with LRU and idle eviction
+	@Test
+	public void testVolumeRegistry() throws Exception {
+		EncFSVolumeRegistry registry = new EncFSVolumeRegistry(2, 1,
+				TimeUnit.HOURS);
+		for (int i = 0; i < 3; i++) {
+			File volumeDir = new File(tempDir, "volume" + i);
+			Assert.assertTrue(volumeDir.mkdir());
+			EncFSLocalFileProvider provider = new EncFSLocalFileProvider(
+					volumeDir);
+			EncFSVolume volume = EncFSVolumeTestCommon.createVolume(
+					new EncFSConfig(), provider);
+			volume.makeDir("/dir" + i);
+			registry.register("volume" + i, provider, volume.getPasswordKey());
+		}
+
+		EncFSVolumeRegistry.Handle handle = registry.acquire("volume0");
+		Assert.assertTrue(handle.getVolume().pathExists("/dir0"));
+		handle.close();
+		handle = registry.acquire("volume0");
+		EncFSVolume volume0 = handle.getVolume();
+		handle.close();
+		Assert.assertEquals(1, registry.getStats("volume0").getHits());
+		Assert.assertEquals(1, registry.getStats("volume0").getMisses());
+
+		// Volumes in use are never evicted
+		EncFSVolumeRegistry.Handle held = registry.acquire("volume1");
+		registry.acquire("volume2").close();
+		Assert.assertEquals(2, registry.getOpenCount());
+		Assert.assertFalse(registry.getStats("volume0").isOpen());
+		Assert.assertEquals(1, registry.getStats("volume0").getEvictions());
+		Assert.assertTrue(registry.getStats("volume1").isOpen());
+		held.close();
+
+		// Evicted volumes are reopened lazily
+		handle = registry.acquire("volume0");
+		Assert.assertNotSame(volume0, handle.getVolume());
+		Assert.assertTrue(handle.getVolume().pathExists("/dir0"));
+		handle.close();
+		Assert.assertEquals(2, registry.getStats("volume0").getMisses());
+
+		// Unregistering zeroes the registry's key, not the open volume's
+		held = registry.acquire("volume1");
+		Assert.assertTrue(registry.unregister("volume1"));
+		Assert.assertFalse(Arrays.equals(new byte[held.getVolume()
+				.getPasswordKey().length], held.getVolume().getPasswordKey()));
+		Assert.assertTrue(held.getVolume().pathExists("/dir1"));
+		held.close();
+
+		try {
+			registry.acquire("unknown");
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+
+		// Idle volumes are evicted once unused
+		EncFSVolumeRegistry idleRegistry = new EncFSVolumeRegistry(10, 0,
+				TimeUnit.MILLISECONDS);
+		idleRegistry.register("volume0", new EncFSVolumeRegistry.VolumeOpener() {
+			public EncFSVolume open() throws EncFSInvalidPasswordException,
+					EncFSInvalidConfigException, EncFSCorruptDataException,
+					EncFSUnsupportedException, IOException {
+				return new EncFSVolume(new EncFSLocalFileProvider(new File(
+						tempDir, "volume0")), "testPassword");
+			}
+		});
+		handle = idleRegistry.acquire("volume0");
+		Thread.sleep(5);
+		Assert.assertEquals(0, idleRegistry.evictIdle());
+		handle.close();
+		Thread.sleep(5);
+		Assert.assertEquals(1, idleRegistry.evictIdle());
+		Assert.assertEquals(0, idleRegistry.getOpenCount());
+		Assert.assertTrue(idleRegistry.unregister("volume0"));
+		Assert.assertNull(idleRegistry.getStats("volume0"));
+	}
+
+	// Streaming config parsing without external entities
+	@Test
+	public void testConfigParser() throws Exception {
+		EncFSConfig config = EncFSConfigParser.parseFile(new File(
+				"test/encfs_samples/testvol-default/.encfs6.xml"));
+		Assert.assertEquals(192, config.getVolumeKeySize());
+		Assert.assertEquals(1024, config.getBlockSize());
+		Assert.assertEquals(EncFSConfig.ENCFS_CONFIG_NAME_ALG_BLOCK,
+				config.getNameAlgorithm());
+		Assert.assertTrue(config.isUniqueIV());
+		Assert.assertFalse(config.isExternalIVChaining());
+		Assert.assertEquals(253807, config.getIterationCount());
+		Assert.assertEquals("Li8XSCZeqCgJZPqnP0Ko2/99gQk=", config
+				.getSaltStr().trim());
+
+		// External entities must not be resolved
+		File secret = new File(tempDir, "secret.txt");
+		OutputStream os = new FileOutputStream(secret);
+		os.write("leaked".getBytes());
+		os.close();
+		String xml = "<?xml version=\"1.0\"?>\n"
+				+ "<!DOCTYPE cfg [<!ENTITY xxe SYSTEM \""
+				+ secret.toURI() + "\">]>\n"
+				+ "<boost_serialization><cfg><saltData>&xxe;</saltData>"
+				+ "<blockSize>512</blockSize></cfg></boost_serialization>";
+		try {
+			config = EncFSConfigParser.parseFile(new ByteArrayInputStream(xml
+					.getBytes("UTF-8")));
+			Assert.assertFalse(String.valueOf(config.getSaltStr()).contains(
+					"leaked"));
+		} catch (SAXException e) {
+			// Rejecting the document is fine as well
+		}
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	private static byte[] readFile(EncFSFile file) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		EncFSUtil.copyWholeStream(file.openInputStream(), bos, true, true);
+		return bos.toByteArray();
+	}
 }
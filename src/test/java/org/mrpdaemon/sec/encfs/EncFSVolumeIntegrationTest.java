@@ -22,6 +22,9 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -141,6 +144,7 @@ public class EncFSVolumeIntegrationTest {
 		assertFileNameEncoding(rootDir);
 		assertEncFSFileRoundTrip(rootDir);
 		assertLengthCalculations(rootDir);
+		assertChannelReads(rootDir);
 	}
 
 	@Test
@@ -201,6 +205,7 @@ public class EncFSVolumeIntegrationTest {
 		assertFileNameEncoding(rootDir);
 		assertEncFSFileRoundTrip(rootDir);
 		assertLengthCalculations(rootDir);
+		assertChannelReads(rootDir);
 	}
 
 	@Test
@@ -418,6 +423,39 @@ public class EncFSVolumeIntegrationTest {
 		}
 	}
 
+	private void assertChannelReads(EncFSFile encFsFile) throws IOException,
+			EncFSCorruptDataException, EncFSUnsupportedException {
+		if (encFsFile.isDirectory() == false) {
+			byte[] contents = readInputStreamAsByteArray(encFsFile);
+			SeekableByteChannel channel = encFsFile.openChannel();
+			try {
+				Assert.assertEquals(contents.length, channel.size());
+
+				// Read small chunks going backwards through the file
+				int chunkSize = 100;
+				for (int pos = contents.length - 1; pos >= 0; pos -= 333) {
+					ByteBuffer buf = ByteBuffer.allocate(chunkSize);
+					channel.position(pos);
+					int bytesRead = channel.read(buf);
+					int expected = Math.min(chunkSize, contents.length - pos);
+					Assert.assertEquals(expected, bytesRead);
+					Assert.assertArrayEquals(
+							Arrays.copyOfRange(contents, pos, pos + expected),
+							Arrays.copyOf(buf.array(), bytesRead));
+				}
+
+				channel.position(contents.length);
+				Assert.assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+			} finally {
+				channel.close();
+			}
+		} else {
+			for (EncFSFile subEncfFile : encFsFile.listFiles()) {
+				assertChannelReads(subEncfFile);
+			}
+		}
+	}
+
 	private void assertInputStreamsAreEqual(String msg, InputStream encfsIs,
 			InputStream decFsIs) throws IOException {
 		int bytesRead = 0, bytesRead2 = 0;